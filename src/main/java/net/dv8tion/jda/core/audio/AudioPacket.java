@@ -65,7 +65,8 @@ public class AudioPacket
     private final char seq;
     private final int timestamp;
     private final int ssrc;
-    private final byte[] encodedAudio;
+    //the encoded audio is the rest of the raw packet, starting here
+    private final int audioOffset;
     private final byte[] rawPacket;
 
     public AudioPacket(final DatagramPacket packet)
@@ -96,30 +97,38 @@ public class AudioPacket
             }
             while (data[i] == 0)
                 i++;
-            this.encodedAudio = new byte[data.length - i];
-            System.arraycopy(data, i, this.encodedAudio, 0, this.encodedAudio.length);
+            this.audioOffset = i;
         }
         else
         {
-            this.encodedAudio = new byte[buffer.array().length - RTP_HEADER_BYTE_LENGTH];
-            System.arraycopy(buffer.array(), RTP_HEADER_BYTE_LENGTH, this.encodedAudio, 0, this.encodedAudio.length);
+            this.audioOffset = RTP_HEADER_BYTE_LENGTH;
         }
     }
 
     public AudioPacket(final char seq, final int timestamp, final int ssrc, final byte[] encodedAudio)
+    {
+        this(seq, timestamp, ssrc, ByteBuffer.wrap(encodedAudio));
+    }
+
+    /**
+     * Builds the packet from the remaining bytes of the buffer, which are consumed. Direct buffers, like memory mapped
+     * ones, are copied straight into the packet without going through an intermediate array.
+     */
+    public AudioPacket(final char seq, final int timestamp, final int ssrc, final ByteBuffer encodedAudio)
     {
         this.seq = seq;
         this.ssrc = ssrc;
         this.timestamp = timestamp;
-        this.encodedAudio = encodedAudio;
+        this.audioOffset = RTP_HEADER_BYTE_LENGTH;
 
-        final ByteBuffer buffer = ByteBuffer.allocate(RTP_HEADER_BYTE_LENGTH + encodedAudio.length);
+        final ByteBuffer buffer = ByteBuffer.allocate(RTP_HEADER_BYTE_LENGTH + encodedAudio.remaining());
         buffer.put(RTP_VERSION_PAD_EXTEND_INDEX, RTP_VERSION_PAD_EXTEND);   //0
         buffer.put(RTP_PAYLOAD_INDEX, RTP_PAYLOAD_TYPE);                    //1
         buffer.putChar(SEQ_INDEX, seq);                                     //2 - 3
         buffer.putInt(TIMESTAMP_INDEX, timestamp);                          //4 - 7
         buffer.putInt(SSRC_INDEX, ssrc);                                    //8 - 11
-        System.arraycopy(encodedAudio, 0, buffer.array(), RTP_HEADER_BYTE_LENGTH, encodedAudio.length);//12 - n
+        buffer.position(RTP_HEADER_BYTE_LENGTH);
+        buffer.put(encodedAudio);                                           //12 - n
         this.rawPacket = buffer.array();
 
     }
@@ -137,7 +146,7 @@ public class AudioPacket
 
     public byte[] getEncodedAudio()
     {
-        return Arrays.copyOf(this.encodedAudio, this.encodedAudio.length);
+        return Arrays.copyOfRange(this.rawPacket, this.audioOffset, this.rawPacket.length);
     }
 
     public char getSequence()
@@ -180,7 +189,8 @@ public class AudioPacket
 
         //Create our SecretBox encoder with the secretKey provided by Discord.
         final TweetNaclFast.SecretBox boxer = new TweetNaclFast.SecretBox(secretKey);
-        final byte[] intermediateAudio = boxer.box(this.encodedAudio, extendedNonce);
+        final byte[] intermediateAudio = boxer.box(this.rawPacket, this.audioOffset,
+                this.rawPacket.length - this.audioOffset, extendedNonce);
         byte[] encryptedAudio = intermediateAudio;
         if (nonce != null) {
             // here we append the provided nonce which is used in _suffix and _lite encryption modes
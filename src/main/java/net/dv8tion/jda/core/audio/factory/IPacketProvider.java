@@ -75,6 +75,41 @@ public interface IPacketProvider
      */
     DatagramPacket getNextPacket(boolean changeTalking);
 
+    /**
+     * Used to retrieve many audio packets at once, for send systems that front-load or queue packets ahead of send time.
+     * Packets are retrieved in order, until the requested amount has been retrieved or the
+     * {@link net.dv8tion.jda.core.audio.AudioSendHandler AudioSendHandler} cannot provide another one.
+     *
+     * <p>The talking indicator is only changed if not a single packet could be retrieved, as described for
+     * {@link #getNextPacket(boolean)}.
+     *
+     * <p>The default implementation calls {@link #getNextPacket(boolean)} repeatedly. Implementations are encouraged to
+     * override it with a more efficient one.
+     *
+     * @param  changeTalking
+     *         Whether or not to change the talking indicator if the AudioSendHandler cannot provide a single audio packet.
+     * @param  packets
+     *         The array to store the retrieved packets into.
+     * @param  offset
+     *         The index of the array to store the first packet at.
+     * @param  length
+     *         The maximum amount of packets to retrieve.
+     *
+     * @return The amount of packets that have been stored into the array, starting at {@code offset}.
+     */
+    default int getNextPackets(boolean changeTalking, DatagramPacket[] packets, int offset, int length)
+    {
+        int count = 0;
+        while (count < length)
+        {
+            DatagramPacket packet = getNextPacket(changeTalking && count == 0);
+            if (packet == null)
+                break;
+            packets[offset + count++] = packet;
+        }
+        return count;
+    }
+
     /**
      * This method is used to indicate a connection error to JDA so that the connection can be properly shutdown.
      * <br>This is useful if, during setup or operation, an unrecoverable error is encountered.
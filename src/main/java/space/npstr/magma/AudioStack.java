@@ -20,20 +20,22 @@ import net.dv8tion.jda.core.audio.AudioSendHandler;
 import net.dv8tion.jda.core.audio.factory.IAudioSendFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.reactive.socket.client.WebSocketClient;
-import reactor.core.Disposable;
-import reactor.core.publisher.FluxSink;
-import reactor.core.publisher.UnicastProcessor;
 import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.connections.AdmissionControl;
+import space.npstr.magma.connections.AudioConnection;
 import space.npstr.magma.connections.AudioWebSocket;
+import space.npstr.magma.connections.HeartbeatScheduler;
 import space.npstr.magma.events.audio.lifecycle.CloseWebSocket;
 import space.npstr.magma.events.audio.lifecycle.ConnectWebSocket;
 import space.npstr.magma.events.audio.lifecycle.LifecycleEvent;
 import space.npstr.magma.events.audio.lifecycle.Shutdown;
 import space.npstr.magma.events.audio.lifecycle.UpdateSendHandler;
 import space.npstr.magma.events.audio.lifecycle.UpdateSendHandlerLcEvent;
+import space.npstr.magma.immutables.SessionInfo;
+import space.npstr.magma.transport.WebSocketTransport;
 
 import javax.annotation.Nullable;
+import java.util.Optional;
 
 /**
  * Created by napster on 23.04.18.
@@ -48,11 +50,18 @@ public class AudioStack {
 
     private final String guildId;
     private final IAudioSendFactory sendFactory;
-    private final WebSocketClient webSocketClient;
+    private final WebSocketTransport webSocketTransport;
+    private final HeartbeatScheduler heartbeatScheduler;
+    private final AdmissionControl admissionControl;
+    private final Config config;
     private final AudioStackLifecyclePipeline lifecyclePipeline;
 
-    private final FluxSink<LifecycleEvent> lifecycleSink;
-    private final Disposable lifecycleSubscription;
+    // same as in the lifecycle pipeline, only the latest of these is applied if several have queued up
+    private final EventCoalescer<Member, ConnectWebSocket> connects = new EventCoalescer<>();
+    private final EventCoalescer<Member, UpdateSendHandler> sendHandlerUpdates = new EventCoalescer<>();
+
+    //closing connections blocks, it shuts down their send systems
+    private final Mailbox<LifecycleEvent> lifecycleMailbox = new Mailbox<>(this::onNext, Schedulers.elastic());
 
     @Nullable
     private AudioWebSocket webSocket;
@@ -60,18 +69,17 @@ public class AudioStack {
     private AudioSendHandler sendHandler;
 
 
-    public AudioStack(final String guildId, final IAudioSendFactory sendFactory, final WebSocketClient webSocketClient,
-                      final AudioStackLifecyclePipeline lifecyclePipeline) {
+    public AudioStack(final String guildId, final IAudioSendFactory sendFactory,
+                      final WebSocketTransport webSocketTransport,
+                      final HeartbeatScheduler heartbeatScheduler, final AdmissionControl admissionControl,
+                      final Config config, final AudioStackLifecyclePipeline lifecyclePipeline) {
         this.guildId = guildId;
         this.sendFactory = sendFactory;
-        this.webSocketClient = webSocketClient;
+        this.webSocketTransport = webSocketTransport;
+        this.heartbeatScheduler = heartbeatScheduler;
+        this.admissionControl = admissionControl;
+        this.config = config;
         this.lifecyclePipeline = lifecyclePipeline;
-
-        final UnicastProcessor<LifecycleEvent> lifecycleProcessor = UnicastProcessor.create();
-        this.lifecycleSink = lifecycleProcessor.sink();
-        this.lifecycleSubscription = lifecycleProcessor
-                .subscribeOn(Schedulers.single())
-                .subscribe(this::onNext);
     }
 
 
@@ -82,7 +90,14 @@ public class AudioStack {
                     event.getGuildId(), this.guildId));
         }
 
-        this.lifecycleSink.next(event);
+        if (event instanceof ConnectWebSocket) {
+            this.connects.offer(event.getMember(), (ConnectWebSocket) event);
+        } else if (event instanceof UpdateSendHandler) {
+            this.sendHandlerUpdates.offer(event.getMember(), (UpdateSendHandler) event);
+        } else if (event instanceof CloseWebSocket && !((CloseWebSocket) event).getSessionInfo().isPresent()) {
+            this.connects.supersede(event.getMember());
+        }
+        this.lifecycleMailbox.post(event);
     }
 
 
@@ -90,9 +105,13 @@ public class AudioStack {
     private void onNext(final LifecycleEvent event) {
 
         if (event instanceof ConnectWebSocket) {
-            this.handleConnectWebSocket((ConnectWebSocket) event);
+            if (this.connects.poll(event.getMember(), (ConnectWebSocket) event)) {
+                this.handleConnectWebSocket((ConnectWebSocket) event);
+            }
         } else if (event instanceof UpdateSendHandler) {
-            this.handleUpdateSendHandler((UpdateSendHandler) event);
+            if (this.sendHandlerUpdates.poll(event.getMember(), (UpdateSendHandler) event)) {
+                this.handleUpdateSendHandler((UpdateSendHandler) event);
+            }
         } else if (event instanceof CloseWebSocket) {
             this.handleCloseWebSocket((CloseWebSocket) event);
         } else if (event instanceof Shutdown) {
@@ -105,38 +124,59 @@ public class AudioStack {
 
 
     private void handleConnectWebSocket(final ConnectWebSocket connectWebSocket) {
+        final AudioConnection audioConnection;
         if (this.webSocket != null) {
-            this.webSocket.close();
+            //moving to another voice server, keep the audio connection with all of its resources
+            audioConnection = this.webSocket.closeAndDetachAudioConnection();
+        } else {
+            audioConnection = new AudioConnection(this.sendFactory, this.config);
+            if (this.sendHandler != null) {
+                audioConnection.updateSendHandler(
+                        UpdateSendHandlerLcEvent.builder()
+                                .member(connectWebSocket.getMember())
+                                .audioSendHandler(this.sendHandler)
+                                .build());
+            }
         }
 
-        this.webSocket = new AudioWebSocket(this.sendFactory, connectWebSocket.getSessionInfo(),
-                this.webSocketClient, this.lifecyclePipeline);
-        if (this.sendHandler != null) {
-            this.webSocket.getAudioConnection().updateSendHandler(
-                    UpdateSendHandlerLcEvent.builder()
-                            .member(connectWebSocket.getMember())
-                            .audioSendHandler(this.sendHandler)
-                            .build());
-        }
+        this.webSocket = new AudioWebSocket(connectWebSocket.getSessionInfo(), audioConnection,
+                this.webSocketTransport, this.heartbeatScheduler, this.admissionControl, this.lifecyclePipeline,
+                this.sendHandler != null);
     }
 
     private void handleUpdateSendHandler(final UpdateSendHandler updateSendHandler) {
         this.sendHandler = updateSendHandler.getAudioSendHandler().orElse(null);
 
         if (this.webSocket != null) {
+            this.webSocket.setPrioritized(this.sendHandler != null);
             this.webSocket.getAudioConnection().updateSendHandler(updateSendHandler);
         }
     }
 
     private void handleCloseWebSocket(final CloseWebSocket closeWebSocket) {
+        if (this.isStale(closeWebSocket)) {
+            log.debug("Ignoring close of a session that has been or is about to be replaced");
+            return;
+        }
         if (this.webSocket != null) {
             this.webSocket.close();
             this.webSocket = null;
         }
     }
 
+    //closes of failed sessions only apply to the session they were requested for, and are moot if a connect follows
+    private boolean isStale(final CloseWebSocket closeWebSocket) {
+        final Optional<SessionInfo> failedSession = closeWebSocket.getSessionInfo();
+        if (!failedSession.isPresent()) {
+            return false;
+        }
+        return this.webSocket == null
+                || this.webSocket.getSessionInfo() != failedSession.get()
+                || this.connects.isPending(closeWebSocket.getMember());
+    }
+
     private void handleShutdown(final Shutdown shutdown) {
-        this.lifecycleSubscription.dispose();
+        this.lifecycleMailbox.close();
         if (this.webSocket != null) {
             this.webSocket.close();
             this.webSocket = null;
@@ -19,26 +19,26 @@ package space.npstr.magma;
 import net.dv8tion.jda.core.audio.factory.IAudioSendFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.reactive.socket.client.WebSocketClient;
-import reactor.core.Disposable;
-import reactor.core.publisher.FluxSink;
-import reactor.core.publisher.UnicastProcessor;
-import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.connections.AdmissionControl;
 import space.npstr.magma.connections.AudioConnection;
 import space.npstr.magma.connections.AudioWebSocket;
+import space.npstr.magma.connections.HeartbeatScheduler;
+import space.npstr.magma.events.audio.lifecycle.Batch;
 import space.npstr.magma.events.audio.lifecycle.CloseWebSocket;
+import space.npstr.magma.events.audio.lifecycle.CloseWebSocketLcEvent;
+import space.npstr.magma.events.audio.lifecycle.CloseWebSockets;
 import space.npstr.magma.events.audio.lifecycle.ConnectWebSocketLcEvent;
 import space.npstr.magma.events.audio.lifecycle.LifecycleEvent;
 import space.npstr.magma.events.audio.lifecycle.Shutdown;
 import space.npstr.magma.events.audio.lifecycle.UpdateSendHandler;
 import space.npstr.magma.events.audio.lifecycle.VoiceServerUpdate;
 import space.npstr.magma.immutables.ImmutableSessionInfo;
+import space.npstr.magma.transport.WebSocketTransport;
 
 import javax.annotation.CheckReturnValue;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Function;
-import java.util.logging.Level;
 
 /**
  * Created by napster on 22.04.18.
@@ -64,43 +64,66 @@ import java.util.logging.Level;
  * <p>
  * Neutral Events:
  * -- Setting and removing a send handler
+ * <p>
+ * Any of these except shutdown may also arrive bundled up in a batch, for example when a whole shard reconnects.
  */
 public class AudioStackLifecyclePipeline {
 
     private static final Logger log = LoggerFactory.getLogger(AudioStackLifecyclePipeline.class);
 
     // userId <-> guildId <-> audio stack
-    // concurrency is handled by modifying this through a single thread eventloop only
+    // concurrency is handled by modifying this through the mailbox only
     private final Map<String, Map<String, AudioStack>> audioStacks = new HashMap<>();
 
     private final Function<Member, IAudioSendFactory> sendFactoryProvider;
-    private final WebSocketClient webSocketClient;
+    private final WebSocketTransport webSocketTransport;
+    private final HeartbeatScheduler heartbeatScheduler;
+    private final AdmissionControl admissionControl;
+    private final Config config;
+
+    // gateway flaps may queue up several of these for the same member, only the latest one of each is applied
+    private final EventCoalescer<Member, VoiceServerUpdate> voiceServerUpdates = new EventCoalescer<>();
+    private final EventCoalescer<Member, UpdateSendHandler> sendHandlerUpdates = new EventCoalescer<>();
 
-    private final FluxSink<LifecycleEvent> lifecycleEventSink;
-    private final Disposable lifecycleSubscription;
+    private final Mailbox<LifecycleEvent> lifecycleMailbox = new Mailbox<>(this::onEvent);
 
     public AudioStackLifecyclePipeline(final Function<Member, IAudioSendFactory> sendFactoryProvider,
-                                       final WebSocketClient webSocketClient) {
+                                       final WebSocketTransport webSocketTransport,
+                                       final HeartbeatScheduler heartbeatScheduler,
+                                       final AdmissionControl admissionControl,
+                                       final Config config) {
         this.sendFactoryProvider = sendFactoryProvider;
-        this.webSocketClient = webSocketClient;
-
-
-        final UnicastProcessor<LifecycleEvent> processor = UnicastProcessor.create();
-
-        this.lifecycleEventSink = processor.sink();
-
-
-        this.lifecycleSubscription = processor
-                .log(log.getName() + ".Inbound", Level.FINEST) //FINEST = TRACE
-                .subscribeOn(Schedulers.single())
-                .subscribe(this::onEvent);
+        this.webSocketTransport = webSocketTransport;
+        this.heartbeatScheduler = heartbeatScheduler;
+        this.admissionControl = admissionControl;
+        this.config = config;
     }
 
     /**
      * Call this to drop lifecycle events into this thing for processing
      */
     public void next(final LifecycleEvent lifecycleEvent) {
-        this.lifecycleEventSink.next(lifecycleEvent);
+        this.offerToCoalescers(lifecycleEvent);
+        log.trace("Inbound {}", lifecycleEvent);
+        this.lifecycleMailbox.post(lifecycleEvent);
+    }
+
+    private void offerToCoalescers(final LifecycleEvent event) {
+        if (event instanceof VoiceServerUpdate) {
+            this.voiceServerUpdates.offer(event.getMember(), (VoiceServerUpdate) event);
+        } else if (event instanceof UpdateSendHandler) {
+            this.sendHandlerUpdates.offer(event.getMember(), (UpdateSendHandler) event);
+        } else if (event instanceof CloseWebSocket) {
+            //connecting is pointless if the connection is closed right after. send handlers outlive the connection.
+            //closes of failed sessions are older than any voice server update that is queued up.
+            if (!((CloseWebSocket) event).getSessionInfo().isPresent()) {
+                this.voiceServerUpdates.supersede(event.getMember());
+            }
+        } else if (event instanceof CloseWebSockets) {
+            this.voiceServerUpdates.supersede(((CloseWebSockets) event).getFilter());
+        } else if (event instanceof Batch) {
+            ((Batch) event).getEvents().forEach(this::offerToCoalescers);
+        }
     }
 
 
@@ -108,6 +131,10 @@ public class AudioStackLifecyclePipeline {
 
         if (event instanceof VoiceServerUpdate) {
             final VoiceServerUpdate voiceServerUpdate = (VoiceServerUpdate) event;
+            if (!this.voiceServerUpdates.poll(event.getMember(), voiceServerUpdate)) {
+                log.debug("Dropping superseded voice server update for {}", event.getMember());
+                return;
+            }
             this.getAudioStack(event)
                     .next(ConnectWebSocketLcEvent.builder()
                             .sessionInfo(ImmutableSessionInfo.builder()
@@ -116,14 +143,36 @@ public class AudioStackLifecyclePipeline {
                             .build()
                     );
         } else if (event instanceof UpdateSendHandler) {
+            if (!this.sendHandlerUpdates.poll(event.getMember(), (UpdateSendHandler) event)) {
+                log.debug("Dropping superseded send handler update for {}", event.getMember());
+                return;
+            }
             this.getAudioStack(event)
                     .next(event);
         } else if (event instanceof CloseWebSocket) {
             //pass it on
             this.getAudioStack(event)
                     .next(event);
+        } else if (event instanceof CloseWebSockets) {
+            final CloseWebSockets closeWebSockets = (CloseWebSockets) event;
+            //only existing stacks, there is nothing to close otherwise
+            this.audioStacks.forEach((userId, stacks) -> stacks.forEach((guildId, audioStack) -> {
+                final Member member = MagmaMember.builder()
+                        .userId(userId)
+                        .guildId(guildId)
+                        .build();
+                if (closeWebSockets.getFilter().test(member)) {
+                    audioStack.next(CloseWebSocketLcEvent.builder()
+                            .member(member)
+                            .build());
+                }
+            }));
+        } else if (event instanceof Batch) {
+            ((Batch) event).getEvents().forEach(this::onEvent);
         } else if (event instanceof Shutdown) {
-            this.lifecycleSubscription.dispose();
+            this.lifecycleMailbox.close();
+            this.heartbeatScheduler.shutdown();
+            this.webSocketTransport.shutdown();
 
             this.audioStacks.values().stream().flatMap(map -> map.values().stream()).forEach(
                     audioStack -> audioStack.next(event)
@@ -140,7 +189,10 @@ public class AudioStackLifecyclePipeline {
                 .computeIfAbsent(lifecycleEvent.getGuildId(), __ ->
                         new AudioStack(lifecycleEvent.getGuildId(),
                                 this.sendFactoryProvider.apply(lifecycleEvent.getMember()),
-                                this.webSocketClient,
+                                this.webSocketTransport,
+                                this.heartbeatScheduler,
+                                this.admissionControl,
+                                this.config,
                                 this));
     }
 }
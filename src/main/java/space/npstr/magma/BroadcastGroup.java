@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import space.npstr.magma.connections.OpusEncoder;
+
+import javax.annotation.Nullable;
+import java.nio.ShortBuffer;
+
+/**
+ * Plays the audio of a single source into any number of connections, while pulling and encoding each frame only once.
+ * The member connections only build their own packets and encrypt them. Made for playing the same stream, like a radio,
+ * into lots of guilds.
+ * <p>
+ * Set a send handler created by {@link #createSendHandler()} for each member that shall hear the broadcast:
+ * <pre>
+ * {@code
+ * BroadcastGroup radio = new BroadcastGroup(radioSendHandler);
+ * magma.setSendHandler(member, radio.createSendHandler());
+ * }
+ * </pre>
+ * The source is pulled as fast as the fastest member asks for frames. Members that fall too far behind it skip ahead
+ * to the latest frame, and so do members that join.
+ */
+public class BroadcastGroup {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastGroup.class);
+
+    //how many of the latest frames are kept for members that are behind the fastest one
+    private static final int HISTORY = 32;
+
+    private final AudioSendHandler source;
+    //serializes pulling the source and encoding, which do not need to block the members that are behind
+    private final Object producerLock = new Object();
+
+    // these are guarded by the producer lock
+    @Nullable
+    private final OpusEncoder encoder;
+    private boolean failing = false;
+
+    // all of these are guarded by this
+    private final byte[][] history = new byte[HISTORY][];
+    private long produced = 0;
+    private boolean closed = false;
+
+    /**
+     * @param source
+     *         the send handler providing the audio of the broadcast. Mono and pcm sample send handlers are supported,
+     *         opus audio is passed on as it is.
+     */
+    public BroadcastGroup(final AudioSendHandler source) {
+        this.source = source;
+        this.encoder = source.isOpus()
+                ? null
+                : new OpusEncoder(source instanceof MonoSendHandler ? 1 : 2);
+    }
+
+    /**
+     * @return a new send handler playing this broadcast. Use one per member.
+     */
+    public AudioSendHandler createSendHandler() {
+        return new BroadcastSendHandler();
+    }
+
+    /**
+     * Stop the broadcast and free its encoder. The send handlers of the group will not provide any more audio.
+     */
+    public void close() {
+        synchronized (this.producerLock) {
+            synchronized (this) {
+                this.closed = true;
+                for (int i = 0; i < HISTORY; i++) {
+                    this.history[i] = null;
+                }
+            }
+            if (this.encoder != null) {
+                this.encoder.destroy();
+            }
+        }
+    }
+
+    // ################################################################################
+    // #                                Internals
+    // ################################################################################
+
+    @Nullable
+    private byte[] peek(final BroadcastSendHandler member) {
+        final long latest;
+        synchronized (this) {
+            if (this.closed) {
+                return null;
+            }
+            if (member.cursor < 0 || member.cursor < this.produced - HISTORY) {
+                //joined, or fell behind too far: skip ahead to the latest frame, in lockstep with the other members
+                member.cursor = Math.max(0, this.produced - 1);
+            }
+            if (member.cursor < this.produced) {
+                return this.history[(int) (member.cursor % HISTORY)];
+            }
+            latest = this.produced;
+        }
+
+        //the member is up to date, a new frame is needed. it is pulled and encoded outside of the group monitor, so
+        //the members that are behind are not held up by it. of the members waiting for the same frame, only the first
+        //one produces it.
+        synchronized (this.producerLock) {
+            final boolean needed;
+            synchronized (this) {
+                needed = !this.closed && this.produced == latest;
+            }
+            if (needed) {
+                final byte[] frame = this.produceFrame();
+                if (frame == null) {
+                    return null;
+                }
+                synchronized (this) {
+                    if (this.closed) {
+                        return null;
+                    }
+                    this.history[(int) (this.produced % HISTORY)] = frame;
+                    this.produced++;
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (this.closed || member.cursor >= this.produced) {
+                return null;
+            }
+            return this.history[(int) (member.cursor % HISTORY)];
+        }
+    }
+
+    //called by the thread of the member only, which is the only one moving its cursor
+    @Nullable
+    private byte[] take(final BroadcastSendHandler member) {
+        final byte[] frame = this.peek(member);
+        if (frame != null) {
+            synchronized (this) {
+                member.cursor++;
+            }
+        }
+        return frame;
+    }
+
+    //called while holding the producer lock
+    @Nullable
+    private byte[] produceFrame() {
+        try {
+            if (!this.source.canProvide()) {
+                return null;
+            }
+            final byte[] frame;
+            if (this.source instanceof PcmSendHandler && this.encoder != null) {
+                final ShortBuffer pcm = ((PcmSendHandler) this.source).provide20MsPcm();
+                if (pcm == null || !pcm.hasRemaining()) {
+                    return null;
+                }
+                frame = this.encoder.encode(pcm);
+            } else {
+                final byte[] audio = this.source.provide20MsAudio();
+                if (audio == null || audio.length == 0) {
+                    return null;
+                }
+                frame = this.encoder == null ? audio : this.encoder.encode(audio);
+            }
+            this.failing = false;
+            return frame;
+        } catch (final Exception e) {
+            //every member asks again right away, a broken source would flood the log otherwise
+            if (!this.failing) {
+                this.failing = true;
+                log.error("Failed to produce broadcast frame, logging further failures at debug until it recovers", e);
+            } else {
+                log.debug("Failed to produce broadcast frame", e);
+            }
+            return null;
+        }
+    }
+
+    private class BroadcastSendHandler implements AudioSendHandler {
+        //index of the next frame to be sent to this member, guarded by the group
+        private long cursor = -1;
+
+        @Override
+        public boolean canProvide() {
+            return BroadcastGroup.this.peek(this) != null;
+        }
+
+        @Nullable
+        @Override
+        public byte[] provide20MsAudio() {
+            return BroadcastGroup.this.take(this);
+        }
+
+        @Override
+        public boolean isOpus() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.immutables.value.Value;
+
+import java.time.Duration;
+
+/**
+ * Tuning knobs of a Magma instance. All of them have sensible defaults, so only set those that you want to change.
+ * <p>
+ * Build one of these by using the autogenerated builder like so:
+ * <pre>
+ * {@code
+ * Config config = MagmaConfig.builder()
+ *      .maxMissedHeartbeatAcks(3)
+ *      .build();
+ * }
+ * </pre>
+ */
+@Value.Immutable
+@Value.Style(
+        typeAbstract = "*",
+        typeImmutable = "Magma*"
+)
+public abstract class Config {
+
+    /**
+     * How many heartbeats in a row may go unacknowledged by Discord before the voice websocket is considered dead and
+     * will be resumed. Zero disables this check.
+     */
+    @Value.Default
+    public int getMaxMissedHeartbeatAcks() {
+        return 3;
+    }
+
+    /**
+     * How many voice connections may be in the process of being established (websocket handshake, identify or resume,
+     * udp discovery) at the same time. Further ones will be queued, connections that have a send handler set first.
+     */
+    @Value.Default
+    public int getMaxConcurrentConnects() {
+        return 32;
+    }
+
+    /**
+     * How long the audio of a connection has to stay silent before we tell Discord that we stopped speaking. Short gaps
+     * in the audio will not cause a flurry of speaking updates this way. Zero stops speaking on the first silent frame.
+     */
+    @Value.Default
+    public Duration getSpeakingReleaseDelay() {
+        return Duration.ofMillis(200);
+    }
+
+    /**
+     * How long the send handler of a connection has to be unable to provide audio before the connection hibernates.
+     * Hibernating connections release their send system, opus encoder and udp socket, while their voice websocket and
+     * session are kept alive, and get them back as soon as the send handler is able to provide again. Zero disables
+     * hibernation.
+     */
+    @Value.Default
+    public Duration getHibernationDelay() {
+        return Duration.ofMinutes(5);
+    }
+
+    /**
+     * Whether to prepare the packets of each connection a few frames ahead of time on a shared worker pool, instead of
+     * pulling, encoding and encrypting them on the timing thread of the send system right when they are due. This
+     * keeps a slow send handler of one connection from delaying the packets of all others, and spreads the work across
+     * all cores.
+     */
+    @Value.Default
+    public boolean isPipelinedSending() {
+        return false;
+    }
+
+    /**
+     * How much audio pipelined connections keep prepared ahead of time, rounded up to whole 20ms frames. A deeper
+     * buffer rides out longer garbage collection pauses, scheduling hiccups and slow send handlers without stutter, at
+     * the cost of reacting that much later to changes of the audio.
+     * <p>
+     * Only used with {@link #isPipelinedSending()}, connections without it prepare nothing ahead. The same look ahead
+     * applies to all connections of this config. Catching up on the packets missed during a stall of the send system
+     * itself relies on the send system front-loading, that is requesting several packets in a row after a pause. Send
+     * systems that keep requesting one packet per tick only benefit from the buffer when the stall happens while
+     * preparing packets, for example in a slow send handler.
+     */
+    @Value.Default
+    public Duration getLookAhead() {
+        return Duration.ofMillis(60);
+    }
+
+    /**
+     * How much audio each packet carries for send handlers that provide pcm audio. 40ms or 60ms frames halve or third
+     * the packet rate of a connection, which suits music well. Send handlers may pick their own by implementing
+     * {@link FramedSendHandler}.
+     */
+    @Value.Default
+    public FrameDuration getFrameDuration() {
+        return FrameDuration.MS_20;
+    }
+
+    @Value.Check
+    protected void valuesNotNegative() {
+        if (this.getMaxMissedHeartbeatAcks() < 0) {
+            throw new IllegalArgumentException("Provided max missed heartbeat acks is negative!");
+        }
+        if (this.getMaxConcurrentConnects() < 1) {
+            throw new IllegalArgumentException("Provided max concurrent connects is less than one!");
+        }
+        if (this.getSpeakingReleaseDelay().isNegative()) {
+            throw new IllegalArgumentException("Provided speaking release delay is negative!");
+        }
+        if (this.getHibernationDelay().isNegative()) {
+            throw new IllegalArgumentException("Provided hibernation delay is negative!");
+        }
+        if (this.getLookAhead().isNegative() || this.getLookAhead().isZero()) {
+            throw new IllegalArgumentException("Provided look ahead is not positive!");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of the latest event per key that has been queued up for processing, so that events which have been
+ * superseded by a newer one while waiting in a queue can be dropped instead of being processed.
+ * <p>
+ * Events are compared by identity, not equality: two equal events may be separated by other events of the same key,
+ * like a close, in which case the older one must not be mistaken for the newer one.
+ */
+class EventCoalescer<K, E> {
+
+    private final Map<K, E> latest = new ConcurrentHashMap<>();
+
+    /**
+     * Call this before queueing up the event.
+     */
+    void offer(final K key, final E event) {
+        this.latest.put(key, event);
+    }
+
+    /**
+     * Call this when taking the event out of the queue.
+     *
+     * @return true if the event is the latest one offered for its key and should be processed, false if it has been
+     * superseded by a newer one and should be dropped
+     */
+    boolean poll(final K key, final E event) {
+        final boolean[] isLatest = {false};
+        this.latest.computeIfPresent(key, (k, current) -> {
+            if (current != event) {
+                return current;
+            }
+            isLatest[0] = true;
+            return null;
+        });
+        return isLatest[0];
+    }
+
+    /**
+     * @return true if an event has been offered for the key, and has not been polled or superseded yet
+     */
+    boolean isPending(final K key) {
+        return this.latest.containsKey(key);
+    }
+
+    /**
+     * Call this before queueing up an event that supersedes all events of the key queued up before it, like a close.
+     * Those events will be dropped, events offered afterwards are not affected.
+     */
+    void supersede(final K key) {
+        this.latest.remove(key);
+    }
+
+    /**
+     * Same as {@link #supersede(Object)}, for all keys matching the filter.
+     */
+    void supersede(final Predicate<K> filter) {
+        this.latest.keySet().removeIf(filter);
+    }
+}
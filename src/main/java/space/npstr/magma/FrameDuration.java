@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma;
+
+/**
+ * How much audio each packet sent to Discord carries. Longer frames mean fewer packets, and with that less header
+ * overhead, fewer encryption calls and fewer syscalls, at the cost of latency. Send handlers keep providing 20ms of
+ * audio per call, Magma pulls as many of those as it needs for a frame.
+ * <p>
+ * Only applies to send handlers that provide pcm audio. Opus audio provided by send handlers is sent as is, in 20ms
+ * frames.
+ */
+public enum FrameDuration {
+
+    MS_20(20),
+    MS_40(40),
+    MS_60(60);
+
+    private final int millis;
+
+    FrameDuration(final int millis) {
+        this.millis = millis;
+    }
+
+    public int getMillis() {
+        return this.millis;
+    }
+
+    /**
+     * @return how many 20ms chunks of audio make up a frame of this duration
+     */
+    public int getChunks() {
+        return this.millis / 20;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+
+/**
+ * A send handler that picks the frame duration of its connection, overriding {@link Config#getFrameDuration()}. Music
+ * bots may want long frames, while bots that talk to people may stay with short ones.
+ */
+public interface FramedSendHandler extends AudioSendHandler {
+
+    /**
+     * Magma calls this once when the send handler is set for a member.
+     *
+     * @return the duration of the frames of the connection
+     */
+    FrameDuration getFrameDuration();
+}
@@ -18,51 +18,51 @@ package space.npstr.magma;
 
 import club.minnced.opus.util.NativeUtil;
 import com.sun.jna.Platform;
-import io.undertow.protocols.ssl.UndertowXnioSsl;
 import net.dv8tion.jda.core.audio.AudioSendHandler;
 import net.dv8tion.jda.core.audio.factory.IAudioSendFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.reactive.socket.client.WebSocketClient;
-import org.xnio.OptionMap;
-import org.xnio.Xnio;
-import org.xnio.XnioWorker;
-import org.xnio.ssl.XnioSsl;
-import space.npstr.magma.connections.hax.ClosingUndertowWebSocketClient;
+import space.npstr.magma.connections.AdmissionControl;
+import space.npstr.magma.connections.HeartbeatScheduler;
+import space.npstr.magma.events.audio.lifecycle.BatchLcEvent;
 import space.npstr.magma.events.audio.lifecycle.CloseWebSocketLcEvent;
+import space.npstr.magma.events.audio.lifecycle.CloseWebSocketsLcEvent;
+import space.npstr.magma.events.audio.lifecycle.LifecycleEvent;
 import space.npstr.magma.events.audio.lifecycle.Shutdown;
 import space.npstr.magma.events.audio.lifecycle.UpdateSendHandlerLcEvent;
 import space.npstr.magma.events.audio.lifecycle.VoiceServerUpdateLcEvent;
+import space.npstr.magma.transport.WebSocketTransport;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 public class Magma implements MagmaApi {
 
     private static final Logger log = LoggerFactory.getLogger(Magma.class);
 
     private final AudioStackLifecyclePipeline lifecyclePipeline;
+    private final HeartbeatScheduler heartbeatScheduler;
 
     /**
      * @see MagmaApi
      */
-    Magma(final Function<Member, IAudioSendFactory> sendFactoryProvider, final OptionMap xnioOptions) {
+    Magma(final Function<Member, IAudioSendFactory> sendFactoryProvider, final WebSocketTransport webSocketTransport,
+          final Config config) {
         if (!init()) {
             throw new RuntimeException("Failed to load opus lib. See log output for more info.");
         }
 
-        final WebSocketClient webSocketClient;
-        try {
-            final XnioWorker xnioWorker = Xnio.getInstance().createWorker(xnioOptions);
-            final XnioSsl xnioSsl = new UndertowXnioSsl(Xnio.getInstance(), OptionMap.EMPTY);
-            webSocketClient = new ClosingUndertowWebSocketClient(xnioWorker, builder -> builder.setSsl(xnioSsl));
-        } catch (final Exception e) {
-            throw new RuntimeException("Failed to set up websocket client", e);
-        }
-
-        this.lifecyclePipeline = new AudioStackLifecyclePipeline(sendFactoryProvider, webSocketClient);
+        this.heartbeatScheduler = new HeartbeatScheduler(config.getMaxMissedHeartbeatAcks());
+        this.lifecyclePipeline = new AudioStackLifecyclePipeline(sendFactoryProvider, webSocketTransport,
+                this.heartbeatScheduler, new AdmissionControl(config.getMaxConcurrentConnects()), config);
     }
 
     // ################################################################################
@@ -77,12 +77,14 @@ public class Magma implements MagmaApi {
 
     @Override
     public void provideVoiceServerUpdate(final Member member, final ServerUpdate serverUpdate) {
-        this.lifecyclePipeline.next(VoiceServerUpdateLcEvent.builder()
-                .member(member)
-                .sessionId(serverUpdate.getSessionId())
-                .endpoint(serverUpdate.getEndpoint().replace(":80", "")) //Strip the port from the endpoint.
-                .token(serverUpdate.getToken())
-                .build());
+        this.lifecyclePipeline.next(this.voiceServerUpdate(member, serverUpdate));
+    }
+
+    @Override
+    public void provideVoiceServerUpdates(final Map<Member, ServerUpdate> serverUpdates) {
+        this.nextBatch(serverUpdates.entrySet().stream()
+                .map(entry -> this.voiceServerUpdate(entry.getKey(), entry.getValue()))
+                .collect(Collectors.toList()));
     }
 
     @Override
@@ -102,10 +104,49 @@ public class Magma implements MagmaApi {
                 .build());
     }
 
+    @Override
+    public void closeConnections(final Collection<Member> members) {
+        this.nextBatch(members.stream()
+                .map(member -> CloseWebSocketLcEvent.builder()
+                        .member(member)
+                        .build())
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public void closeConnections(final Predicate<Member> filter) {
+        this.lifecyclePipeline.next(CloseWebSocketsLcEvent.builder()
+                .filter(filter)
+                .build());
+    }
+
+    @Override
+    public OptionalLong getHeartbeatRttMillis(final Member member) {
+        return this.heartbeatScheduler.getRttMillis(member);
+    }
+
     // ################################################################################
     // #                             Internals
     // ################################################################################
 
+    private LifecycleEvent voiceServerUpdate(final Member member, final ServerUpdate serverUpdate) {
+        return VoiceServerUpdateLcEvent.builder()
+                .member(member)
+                .sessionId(serverUpdate.getSessionId())
+                .endpoint(serverUpdate.getEndpoint().replace(":80", "")) //Strip the port from the endpoint.
+                .token(serverUpdate.getToken())
+                .build();
+    }
+
+    private void nextBatch(final List<LifecycleEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        this.lifecyclePipeline.next(BatchLcEvent.builder()
+                .addAllEvents(events)
+                .build());
+    }
+
     private void updateSendHandler(final Member member, @Nullable final AudioSendHandler sendHandler) {
         this.lifecyclePipeline.next(UpdateSendHandlerLcEvent.builder()
                 .member(member)
@@ -20,8 +20,14 @@ import net.dv8tion.jda.core.audio.AudioSendHandler;
 import net.dv8tion.jda.core.audio.factory.IAudioSendFactory;
 import org.xnio.OptionMap;
 import org.xnio.XnioWorker;
+import space.npstr.magma.transport.UndertowTransport;
+import space.npstr.magma.transport.WebSocketTransport;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.OptionalLong;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Created by napster on 24.04.18.
@@ -37,6 +43,14 @@ public interface MagmaApi {
         return of(sendFactoryProvider, OptionMap.builder().getMap());
     }
 
+    /**
+     * Please see full factory documentation below. Missing parameters on this factory method are optional.
+     */
+    static MagmaApi of(final Function<Member, IAudioSendFactory> sendFactoryProvider,
+                       final OptionMap xnioOptions) {
+        return of(sendFactoryProvider, xnioOptions, MagmaConfig.builder().build());
+    }
+
     /**
      * Create a new Magma instance. More than one of these is not necessary, even if you are managing several shards and
      * several bot accounts. A single instance of this scales automatically according to your needs and hardware.
@@ -45,10 +59,26 @@ public interface MagmaApi {
      *         a provider of {@link IAudioSendFactory}s. It will have members applied to it.
      * @param xnioOptions
      *         options to build the {@link XnioWorker} that will be used for the websocket connections
+     * @param config
+     *         tuning knobs of the Magma instance, see {@link Config}
      */
     static MagmaApi of(final Function<Member, IAudioSendFactory> sendFactoryProvider,
-                       final OptionMap xnioOptions) {
-        return new Magma(sendFactoryProvider, xnioOptions);
+                       final OptionMap xnioOptions, final Config config) {
+        return of(sendFactoryProvider, new UndertowTransport(xnioOptions), config);
+    }
+
+    /**
+     * Create a new Magma instance with a websocket transport of your choice, for example the
+     * {@link space.npstr.magma.transport.ReactorNettyTransport} to share the event loops of your bot. See the factory
+     * method above for the other parameters.
+     *
+     * @param webSocketTransport
+     *         the websocket client implementation to connect the voice websockets with. It will be shut down together
+     *         with Magma.
+     */
+    static MagmaApi of(final Function<Member, IAudioSendFactory> sendFactoryProvider,
+                       final WebSocketTransport webSocketTransport, final Config config) {
+        return new Magma(sendFactoryProvider, webSocketTransport, config);
     }
 
     /**
@@ -73,6 +103,17 @@ public interface MagmaApi {
      */
     void provideVoiceServerUpdate(final Member member, final ServerUpdate serverUpdate);
 
+    /**
+     * Bulk version of {@link #provideVoiceServerUpdate(Member, ServerUpdate)}, for example for when a whole shard
+     * reconnects. The updates are processed as a single batch, which is much cheaper than providing them one by one.
+     *
+     * @param serverUpdates
+     *         server updates by the bot members they belong to
+     *
+     * @see #provideVoiceServerUpdate(Member, ServerUpdate)
+     */
+    void provideVoiceServerUpdates(final Map<Member, ServerUpdate> serverUpdates);
+
     /**
      * Set the {@link AudioSendHandler} for a bot member.
      *
@@ -80,7 +121,8 @@ public interface MagmaApi {
      *         user id + guild id of the bot member for which the send handler shall be set
      * @param sendHandler
      *         The send handler to be set. You need to implement this yourself. This is a JDA interface so if you have
-     *         written voice code with JDA before you reuse your existing code.
+     *         written voice code with JDA before you reuse your existing code. Implement
+     *         {@link ReadinessNotifyingSendHandler} to have the connection parked while it can not provide audio.
      *
      * @see Member
      */
@@ -106,4 +148,40 @@ public interface MagmaApi {
      */
     void closeConnection(final Member member);
 
+    /**
+     * Close the audio connections of several bot members in a single batch.
+     *
+     * @param members
+     *         user ids + guild ids of the bot members for which the audio connections shall be closed
+     *
+     * @see #closeConnection(Member)
+     */
+    void closeConnections(final Collection<Member> members);
+
+    /**
+     * Close the audio connections of all bot members matching a filter in a single batch, for example all members of
+     * the guilds of a shard that is restarting.
+     *
+     * @param filter
+     *         will be tested against the bot members that Magma knows about. Called from Magma's internal threads, so
+     *         make it quick and thread safe.
+     *
+     * @see #closeConnection(Member)
+     */
+    void closeConnections(final Predicate<Member> filter);
+
+    /**
+     * Round trip time of the voice websocket heartbeats of a bot member. Use it to monitor the latency to the voice
+     * server, or to spot unhealthy connections.
+     *
+     * @param member
+     *         user id + guild id of the bot member for which the round trip time shall be returned
+     *
+     * @return round trip time in milliseconds of the most recently acknowledged heartbeat, or nothing if the bot member
+     * has no voice websocket connection or no heartbeat has been acknowledged yet
+     *
+     * @see Member
+     */
+    OptionalLong getHeartbeatRttMillis(final Member member);
+
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Serially processes the messages posted to it from any number of threads, on a scheduler that is shared by all
+ * mailboxes. An idle mailbox consists of nothing more than an empty lock-free queue and a flag, and costs no thread,
+ * which lets us have one of these per component of each member, even with lots of members.
+ * <p>
+ * Mailboxes run on the parallel scheduler by default, which has only as many threads as there are cores. Mailboxes
+ * whose handlers block, for example by shutting down send systems, have to be given the elastic scheduler instead.
+ * <p>
+ * A mailbox is run for a limited number of messages at a time before giving up the thread to other mailboxes, so a
+ * single busy member can not starve all others.
+ */
+public class Mailbox<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(Mailbox.class);
+
+    private static final int THROUGHPUT = 32;
+
+    private final Consumer<T> handler;
+    private final Scheduler scheduler;
+    private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+    //set while the mailbox is scheduled or running, guarantees that the handler is never run concurrently
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    /**
+     * @param handler
+     *         will be called with the posted messages, one at a time, in the order they were posted in
+     */
+    public Mailbox(final Consumer<T> handler) {
+        this(handler, Schedulers.parallel());
+    }
+
+    /**
+     * @param handler
+     *         will be called with the posted messages, one at a time, in the order they were posted in
+     * @param scheduler
+     *         to process the messages on
+     */
+    public Mailbox(final Consumer<T> handler, final Scheduler scheduler) {
+        this.handler = handler;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Post a message for processing. Messages posted to a closed mailbox are dropped.
+     */
+    public void post(final T message) {
+        if (this.closed) {
+            return;
+        }
+        this.queue.offer(message);
+        this.trySchedule();
+    }
+
+    /**
+     * Stop processing messages. Messages that have been posted and not been processed yet are dropped.
+     */
+    public void close() {
+        this.closed = true;
+        this.queue.clear();
+    }
+
+    // ################################################################################
+    // #                                Internals
+    // ################################################################################
+
+    private void trySchedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.scheduler.schedule(this::run);
+        }
+    }
+
+    private void run() {
+        for (int i = 0; i < THROUGHPUT && !this.closed; i++) {
+            final T message = this.queue.poll();
+            if (message == null) {
+                break;
+            }
+            try {
+                this.handler.accept(message);
+            } catch (final Exception e) {
+                log.error("Uncaught exception while processing {}", message.getClass().getSimpleName(), e);
+            }
+        }
+
+        this.scheduled.set(false);
+        //messages might have been posted after we stopped polling, or we ran out of throughput
+        if (!this.closed && !this.queue.isEmpty()) {
+            this.trySchedule();
+        }
+    }
+}
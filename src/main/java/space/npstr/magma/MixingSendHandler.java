@@ -0,0 +1,214 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Plays the audio of several sources at once for a single member, for example sound effects over music. Set it as the
+ * send handler of the member, and add and remove sources at any time:
+ * <pre>
+ * {@code
+ * MixingSendHandler mixer = new MixingSendHandler();
+ * mixer.addSource(musicSendHandler, 0);
+ * magma.setSendHandler(member, mixer);
+ * mixer.addSource(soundEffectSendHandler, 1);
+ * }
+ * </pre>
+ * While a single source provides audio, its frames are passed on as they are, without any mixing or copying. Sources
+ * of a lower priority than the highest one providing audio are ducked by the ducking volume, so the music quiets down
+ * while an effect plays.
+ * <p>
+ * Sources have to provide stereo pcm audio, either as bytes or as samples of a {@link PcmSendHandler}.
+ */
+public class MixingSendHandler implements PcmSendHandler {
+
+    //20ms of 48KHz stereo
+    private static final int FRAME_SAMPLES = 960 * 2;
+    //volumes are applied as fixed point gains with this many fractional bits
+    private static final int GAIN_BITS = 10;
+    private static final int UNITY_GAIN = 1 << GAIN_BITS;
+
+    private final int duckingGain;
+    //sorted by descending priority, replaced as a whole, guarded by this for writing
+    private volatile Source[] sources = new Source[0];
+
+    //only touched by the thread pulling the audio
+    private final short[] scratch = new short[FRAME_SAMPLES];
+    private final int[] accumulator = new int[FRAME_SAMPLES];
+    private final short[] mix = new short[FRAME_SAMPLES];
+    private final ShortBuffer mixBuffer = ShortBuffer.wrap(this.mix);
+
+    public MixingSendHandler() {
+        this(0.3f);
+    }
+
+    /**
+     * @param duckingVolume
+     *         volume of the sources that have a lower priority than the highest one providing audio, between 0 (muted)
+     *         and 1 (not ducked)
+     */
+    public MixingSendHandler(final float duckingVolume) {
+        if (duckingVolume < 0 || duckingVolume > 1) {
+            throw new IllegalArgumentException("Provided ducking volume is not between 0 and 1!");
+        }
+        this.duckingGain = Math.round(duckingVolume * UNITY_GAIN);
+    }
+
+    /**
+     * Add a source to the mix. Sources with the same priority are mixed at the same volume.
+     *
+     * @param source
+     *         a send handler providing stereo pcm audio in 20ms frames
+     * @param priority
+     *         the higher the priority, the more important the source
+     */
+    public synchronized void addSource(final AudioSendHandler source, final int priority) {
+        if (source.isOpus()) {
+            throw new IllegalArgumentException("Opus audio can not be mixed");
+        }
+        if (source instanceof MonoSendHandler) {
+            throw new IllegalArgumentException("Mono audio can not be mixed");
+        }
+        if (source instanceof FramedSendHandler
+                && ((FramedSendHandler) source).getFrameDuration() != FrameDuration.MS_20) {
+            throw new IllegalArgumentException("Only 20ms frames can be mixed");
+        }
+        final Source[] updated = Arrays.copyOf(this.sources, this.sources.length + 1);
+        updated[updated.length - 1] = new Source(source, priority);
+        Arrays.sort(updated, Comparator.comparingInt((Source s) -> s.priority).reversed());
+        this.sources = updated;
+    }
+
+    /**
+     * Remove a source from the mix.
+     */
+    public synchronized void removeSource(final AudioSendHandler source) {
+        this.sources = Arrays.stream(this.sources)
+                .filter(s -> s.sendHandler != source)
+                .toArray(Source[]::new);
+    }
+
+    @Override
+    public boolean canProvide() {
+        for (final Source source : this.sources) {
+            if (source.sendHandler.canProvide()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public ShortBuffer provide20MsPcm() {
+        final Source[] sources = this.sources;
+        //every source that is able to is pulled, so that they all keep playing in time
+        int active = 0;
+        ShortBuffer single = null;
+        int highestPriority = Integer.MIN_VALUE;
+        for (final Source source : sources) {
+            source.frame = source.sendHandler.canProvide() ? source.pull() : null;
+            if (source.frame != null) {
+                if (active == 0) {
+                    single = source.frame;
+                    highestPriority = source.priority;
+                }
+                active++;
+            }
+        }
+        if (active <= 1) {
+            return single;
+        }
+
+        Arrays.fill(this.accumulator, 0);
+        for (final Source source : sources) {
+            if (source.frame == null) {
+                continue;
+            }
+            final int length = Math.min(source.frame.remaining(), FRAME_SAMPLES);
+            source.frame.get(this.scratch, 0, length);
+            source.frame = null;
+            final int gain = source.priority < highestPriority ? this.duckingGain : UNITY_GAIN;
+            this.accumulate(length, gain);
+        }
+        this.saturate();
+        this.mixBuffer.clear();
+        return this.mixBuffer;
+    }
+
+    // ################################################################################
+    // #                                Internals
+    // ################################################################################
+
+    //plain counted loops over primitive arrays, which the jit vectorizes by itself. there is deliberately no vector api
+    //version of these: jdk.incubator.vector only resolves when the application is started with
+    //--add-modules jdk.incubator.vector, so a multi-release path for it would sit unused in nearly every deployment.
+    private void accumulate(final int length, final int gain) {
+        final short[] scratch = this.scratch;
+        final int[] accumulator = this.accumulator;
+        if (gain == UNITY_GAIN) {
+            for (int i = 0; i < length; i++) {
+                accumulator[i] += scratch[i];
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                accumulator[i] += (scratch[i] * gain) >> GAIN_BITS;
+            }
+        }
+    }
+
+    private void saturate() {
+        final int[] accumulator = this.accumulator;
+        final short[] mix = this.mix;
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            mix[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, accumulator[i]));
+        }
+    }
+
+    private static class Source {
+        private final AudioSendHandler sendHandler;
+        private final int priority;
+        //frame pulled for the current mix, only touched by the thread pulling the audio
+        @Nullable
+        private ShortBuffer frame;
+
+        private Source(final AudioSendHandler sendHandler, final int priority) {
+            this.sendHandler = sendHandler;
+            this.priority = priority;
+        }
+
+        @Nullable
+        private ShortBuffer pull() {
+            final ShortBuffer frame;
+            if (this.sendHandler instanceof PcmSendHandler) {
+                frame = ((PcmSendHandler) this.sendHandler).provide20MsPcm();
+            } else {
+                final byte[] audio = this.sendHandler.provide20MsAudio();
+                //the pcm audio of plain send handlers is big endian, the default order of byte buffers
+                frame = audio == null ? null : ByteBuffer.wrap(audio).asShortBuffer();
+            }
+            return frame == null || !frame.hasRemaining() ? null : frame;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A send handler that provides mono pcm audio, in the {@link #MONO_INPUT_FORMAT} instead of the stereo
+ * {@link AudioSendHandler#INPUT_FORMAT}. Its connection encodes mono opus, which halves the size of the provided audio
+ * and cuts the cost of encoding it. Made for speech, like text to speech or announcements, that does not need to be
+ * upmixed to stereo this way.
+ * <p>
+ * Opus audio provided by such a send handler is sent as is.
+ */
+public interface MonoSendHandler extends AudioSendHandler {
+
+    /**
+     * 48KHz 16bit mono signed BigEndian PCM.
+     */
+    AudioFormat MONO_INPUT_FORMAT = new AudioFormat(48000f, 16, 1, true, true);
+}
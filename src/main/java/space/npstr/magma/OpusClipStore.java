@@ -0,0 +1,306 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps pre-encoded opus clips, like the sounds of a soundboard, in a memory mapped file. Playing a clip costs no
+ * decoding, no encoding and no garbage per frame: its send handler serves the frames right out of the mapping, and
+ * the packet builder copies them from there into the packets. The operating system keeps popular clips in its page
+ * cache, and pages out the rest.
+ * <p>
+ * Clips are appended to the file and survive restarts. Adding a clip under a name that is taken replaces the clip, the
+ * old frames stay in the file until it is rebuilt.
+ * <pre>
+ * {@code
+ * OpusClipStore clips = new OpusClipStore(Paths.get("soundboard.clips"));
+ * clips.addClip("airhorn", airhornFrames);
+ * magma.setSendHandler(member, clips.createSendHandler("airhorn"));
+ * }
+ * </pre>
+ * A single mapping can not be larger than 2GB, so neither can a single clip.
+ */
+public class OpusClipStore implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(OpusClipStore.class);
+
+    //file layout: magic, version, then the clips one after another. each clip is the length of its name, the utf-8
+    //encoded name, its frame count, the lengths of its frames, and then the frames themselves.
+    private static final int MAGIC = 0x4D4F4350; //MOCP, magma opus clips
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int MAX_FRAME_LENGTH = 0xFFFF;
+
+    private final FileChannel channel;
+    private final Map<String, Clip> clips = new ConcurrentHashMap<>();
+    //end of the last complete clip, guarded by this
+    private long end;
+
+    /**
+     * Open a clip store, creating the file if it does not exist yet. The clips of an existing file are indexed right
+     * away. A clip that was cut off while being added, for example by a crash, is dropped.
+     *
+     * @param file
+     *         the file to keep the clips in
+     */
+    public OpusClipStore(final Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (this.channel.size() == 0) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                this.write(header, 0);
+                this.end = HEADER_LENGTH;
+            } else {
+                this.end = this.index();
+                if (this.end < this.channel.size()) {
+                    log.warn("Dropping incomplete clip at the end of {}", file);
+                    this.channel.truncate(this.end);
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Add a clip to the store. Replaces any clip that was stored under the same name.
+     *
+     * @param name
+     *         name of the clip, used to play it
+     * @param frames
+     *         the 20 milliseconds opus frames of the clip, in order
+     */
+    public synchronized void addClip(final String name, final List<byte[]> frames) throws IOException {
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Clip name is too long");
+        }
+        long length = 2 + nameBytes.length + 4 + 2L * frames.size();
+        for (final byte[] frame : frames) {
+            if (frame.length == 0 || frame.length > MAX_FRAME_LENGTH) {
+                throw new IllegalArgumentException("Frame of clip " + name + " has an invalid length of "
+                        + frame.length + " bytes");
+            }
+            length += frame.length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Clip " + name + " is larger than 2GB");
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate((int) length);
+        record.putShort((short) nameBytes.length);
+        record.put(nameBytes);
+        record.putInt(frames.size());
+        for (final byte[] frame : frames) {
+            record.putShort((short) frame.length);
+        }
+        for (final byte[] frame : frames) {
+            record.put(frame);
+        }
+        record.flip();
+
+        final long position = this.end;
+        this.write(record, position);
+        this.end = position + length;
+        this.clips.put(name, this.mapClip(position, (int) length));
+    }
+
+    /**
+     * @return names of all clips in the store
+     */
+    public Set<String> getClipNames() {
+        return Collections.unmodifiableSet(this.clips.keySet());
+    }
+
+    /**
+     * @return a new send handler that plays the clip once. Use one per member.
+     *
+     * @throws IllegalArgumentException
+     *         if there is no clip with that name in the store
+     */
+    public OpusFrameSendHandler createSendHandler(final String name) {
+        final Clip clip = this.clips.get(name);
+        if (clip == null) {
+            throw new IllegalArgumentException("No clip named " + name + " in the store");
+        }
+        return new ClipSendHandler(clip);
+    }
+
+    /**
+     * Close the file of the store. Send handlers that have been created stay usable, as the mappings are only
+     * released once they are garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    // ################################################################################
+    // #                                Internals
+    // ################################################################################
+
+    /**
+     * @return end of the last complete clip
+     */
+    private long index() throws IOException {
+        final long size = this.channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        this.read(header, 0);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a clip store file, or one of an unsupported version");
+        }
+
+        long position = HEADER_LENGTH;
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+        final ByteBuffer countBuffer = ByteBuffer.allocate(4);
+        while (position < size) {
+            if (size - position < 2) {
+                break;
+            }
+            lengthBuffer.clear();
+            this.read(lengthBuffer, position);
+            final int nameLength = Short.toUnsignedInt(lengthBuffer.getShort());
+            if (size - position < 2 + nameLength + 4) {
+                break;
+            }
+            countBuffer.clear();
+            this.read(countBuffer, position + 2 + nameLength);
+            final int frameCount = countBuffer.getInt();
+            final long lengthsEnd = position + 2 + nameLength + 4 + 2L * frameCount;
+            if (frameCount < 0 || frameCount > Integer.MAX_VALUE / 2 || lengthsEnd > size) {
+                break;
+            }
+            final ByteBuffer frameLengths = ByteBuffer.allocate(2 * frameCount);
+            this.read(frameLengths, position + 2 + nameLength + 4);
+            long clipEnd = lengthsEnd;
+            while (frameLengths.hasRemaining()) {
+                clipEnd += Short.toUnsignedInt(frameLengths.getShort());
+            }
+            if (clipEnd > size || clipEnd - position > Integer.MAX_VALUE) {
+                break;
+            }
+
+            final Clip clip = this.mapClip(position, (int) (clipEnd - position));
+            this.clips.put(clip.name, clip);
+            position = clipEnd;
+        }
+        return position;
+    }
+
+    private Clip mapClip(final long position, final int length) throws IOException {
+        final MappedByteBuffer mapping = this.channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        final int nameLength = Short.toUnsignedInt(mapping.getShort(0));
+        final byte[] nameBytes = new byte[nameLength];
+        mapping.position(2);
+        mapping.get(nameBytes);
+        final int frameCount = mapping.getInt();
+
+        //frame index: frame i spans from offsets[i] to offsets[i + 1] of the mapping
+        final int[] offsets = new int[frameCount + 1];
+        offsets[0] = 2 + nameLength + 4 + 2 * frameCount;
+        for (int i = 0; i < frameCount; i++) {
+            offsets[i + 1] = offsets[i] + Short.toUnsignedInt(mapping.getShort());
+        }
+        mapping.clear();
+        return new Clip(new String(nameBytes, StandardCharsets.UTF_8), mapping, offsets);
+    }
+
+    private void write(final ByteBuffer buffer, final long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += this.channel.write(buffer, at);
+        }
+    }
+
+    private void read(final ByteBuffer buffer, final long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            final int read = this.channel.read(buffer, at);
+            if (read < 0) {
+                throw new IOException("Unexpected end of clip store file");
+            }
+            at += read;
+        }
+        buffer.flip();
+    }
+
+    private static class Clip {
+        private final String name;
+        private final MappedByteBuffer mapping;
+        private final int[] offsets;
+
+        private Clip(final String name, final MappedByteBuffer mapping, final int[] offsets) {
+            this.name = name;
+            this.mapping = mapping;
+            this.offsets = offsets;
+        }
+
+        private int getFrameCount() {
+            return this.offsets.length - 1;
+        }
+    }
+
+    private static class ClipSendHandler implements OpusFrameSendHandler {
+        private final Clip clip;
+        //our own view of the mapping, moved from frame to frame, so handing out a frame allocates nothing
+        private final ByteBuffer view;
+        private int frame = 0;
+
+        private ClipSendHandler(final Clip clip) {
+            this.clip = clip;
+            this.view = clip.mapping.duplicate();
+        }
+
+        @Override
+        public boolean canProvide() {
+            return this.frame < this.clip.getFrameCount();
+        }
+
+        @Override
+        public ByteBuffer provide20MsOpus() {
+            if (this.frame >= this.clip.getFrameCount()) {
+                this.view.limit(0);
+                return this.view;
+            }
+            final int start = this.clip.offsets[this.frame];
+            final int end = this.clip.offsets[this.frame + 1];
+            this.frame++;
+            this.view.limit(end);
+            this.view.position(start);
+            return this.view;
+        }
+    }
+}
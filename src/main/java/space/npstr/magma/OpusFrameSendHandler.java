@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * A send handler that provides pre-encoded opus frames as buffers, instead of as fresh arrays. Frames that already
+ * live in memory somewhere, like the memory mapped clips of an {@link OpusClipStore}, are copied straight from there
+ * into the packet, without an intermediate array per frame.
+ * <p>
+ * Magma calls {@link #provide20MsOpus()} instead of {@link #provide20MsAudio()} for these send handlers.
+ */
+public interface OpusFrameSendHandler extends AudioSendHandler {
+
+    /**
+     * Provide a 20 milliseconds opus frame. The remaining bytes of the buffer are sent and consumed. The buffer may be
+     * reused once the next call happens.
+     *
+     * @return a 20 milliseconds opus frame, or null or an empty buffer if there is no audio to send
+     */
+    @Nullable
+    ByteBuffer provide20MsOpus();
+
+    /**
+     * Copies the frame into a new array, for code that only knows about plain send handlers.
+     */
+    @Nullable
+    @Override
+    default byte[] provide20MsAudio() {
+        final ByteBuffer frame = this.provide20MsOpus();
+        if (frame == null) {
+            return null;
+        }
+        final byte[] audio = new byte[frame.remaining()];
+        frame.get(audio);
+        return audio;
+    }
+
+    @Override
+    default boolean isOpus() {
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * A send handler that provides its pcm audio as 16bit samples, instead of as big endian bytes. Decoders that produce
+ * samples in native order can hand them over without swapping their bytes, and Magma passes them to the opus encoder
+ * without swapping them back.
+ * <p>
+ * Magma calls {@link #provide20MsPcm()} instead of {@link #provide20MsAudio()} for these send handlers.
+ */
+public interface PcmSendHandler extends AudioSendHandler {
+
+    /**
+     * Provide 20 milliseconds of 48KHz 16bit signed pcm audio, with the samples of both channels interleaved, or of a
+     * single channel for a {@link MonoSendHandler}. The remaining samples of the buffer are encoded.
+     * <p>
+     * Buffers that wrap a short array, like {@link ShortBuffer#wrap(short[])}, or direct buffers in native byte order,
+     * like {@code ByteBuffer.allocateDirect(n).order(ByteOrder.nativeOrder()).asShortBuffer()}, are encoded without
+     * any conversion. Other buffers are copied first. The buffer may be reused once the next call happens.
+     *
+     * @return 20 milliseconds of pcm audio, or null or an empty buffer if there is no audio to send
+     */
+    ShortBuffer provide20MsPcm();
+
+    /**
+     * Converts the samples into big endian bytes, for code that only knows about plain send handlers.
+     */
+    @Nullable
+    @Override
+    default byte[] provide20MsAudio() {
+        final ShortBuffer pcm = this.provide20MsPcm();
+        if (pcm == null) {
+            return null;
+        }
+        final ByteBuffer audio = ByteBuffer.allocate(pcm.remaining() * Short.BYTES); //big endian, like JDA expects
+        audio.asShortBuffer().put(pcm);
+        return audio.array();
+    }
+
+    @Override
+    default boolean isOpus() {
+        return false;
+    }
+}
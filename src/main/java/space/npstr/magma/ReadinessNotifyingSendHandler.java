@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+
+import javax.annotation.Nullable;
+
+/**
+ * A send handler that tells Magma whenever it becomes able or unable to provide audio, instead of only being asked
+ * via {@link #canProvide()} every 20 milliseconds.
+ * <p>
+ * Once such a send handler is unable to provide and the connection went silent, Magma parks the send system of the
+ * connection, and brings it back when the send handler reports that it is able to provide again. Parked connections
+ * cost no wakeups at all, which adds up when most of the connected guilds are paused or idle. Plain send handlers are
+ * polled as usual.
+ */
+public interface ReadinessNotifyingSendHandler extends AudioSendHandler {
+
+    /**
+     * Magma calls this with a listener when this send handler is set for a member, and with null when it is replaced
+     * or removed.
+     *
+     * @param listener
+     *         call this each time the value returned by {@link #canProvide()} changes. May be called from any thread.
+     */
+    void setReadinessListener(@Nullable ReadinessListener listener);
+
+    @FunctionalInterface
+    interface ReadinessListener {
+
+        /**
+         * @param canProvide
+         *         the new value of {@link #canProvide()}
+         */
+        void onReadinessChanged(boolean canProvide);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits how many voice connections may be establishing at the same time (websocket + tls handshake, identify or
+ * resume, udp discovery). After an outage, thousands of connections may want to be (re)established at once, and doing
+ * all of that concurrently neither helps us nor the recovering voice servers.
+ * <p>
+ * Connections that have to wait are queued, prioritized ones first. Endpoints that failed to establish a connection
+ * are backed off from exponentially, with jitter, until a connection to them succeeds again.
+ */
+public class AdmissionControl {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    //permits that are not returned in time give up their slot, so that hanging handshakes do not block the queue
+    private static final long PERMIT_TIMEOUT_MILLIS = 30_000;
+    //backoffs are forgotten once their endpoint has been eligible again for this long without failing
+    private static final long BACKOFF_RETENTION_MILLIS = MAX_BACKOFF_MILLIS;
+
+    private static final Comparator<Ticket> TICKET_ORDER = Comparator
+            .comparing((Ticket ticket) -> !ticket.prioritized) //prioritized first
+            .thenComparingLong(ticket -> ticket.sequence);     //then first come, first served
+
+    private final int maxConcurrentConnects;
+    private final Scheduler timer;
+
+    // all of these are guarded by this
+    private final NavigableSet<Ticket> queue = new TreeSet<>(TICKET_ORDER);
+    private final Map<String, Backoff> backoffs = new HashMap<>();
+    private int permitsInUse = 0;
+    private long sequence = 0;
+    @Nullable
+    private Disposable scheduledDrain;
+
+    /**
+     * @param maxConcurrentConnects
+     *         how many connections may be establishing at the same time
+     */
+    public AdmissionControl(final int maxConcurrentConnects) {
+        this.maxConcurrentConnects = maxConcurrentConnects;
+        this.timer = Schedulers.parallel();
+    }
+
+    /**
+     * @param endpoint
+     *         the host of the voice server that shall be connected to
+     * @param prioritized
+     *         whether to let this connection go ahead of unprioritized ones
+     *
+     * @return a mono emitting the permit to go ahead and establish the connection. The permit has to be handed back
+     * once the connection has been established or failed. Cancelling the mono gives up the place in the queue.
+     */
+    public Mono<Permit> admit(final String endpoint, final boolean prioritized) {
+        return Mono.create(sink -> {
+            final Ticket ticket;
+            synchronized (this) {
+                ticket = new Ticket(endpoint, prioritized, this.sequence++, sink);
+                this.queue.add(ticket);
+            }
+            sink.onCancel(() -> this.cancel(ticket));
+            this.drain();
+        });
+    }
+
+    // ################################################################################
+    // #                                Internals
+    // ################################################################################
+
+    private synchronized void cancel(final Ticket ticket) {
+        ticket.cancelled = true;
+        this.queue.remove(ticket);
+    }
+
+    private void drain() {
+        final List<Ticket> admitted = new ArrayList<>();
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            long nextEligibleAt = Long.MAX_VALUE;
+            final Iterator<Ticket> it = this.queue.iterator();
+            while (this.permitsInUse < this.maxConcurrentConnects && it.hasNext()) {
+                final Ticket ticket = it.next();
+                final Backoff backoff = this.backoffs.get(ticket.endpoint);
+                if (backoff != null && backoff.notBefore > now) {
+                    nextEligibleAt = Math.min(nextEligibleAt, backoff.notBefore);
+                    continue;
+                }
+                it.remove();
+                this.permitsInUse++;
+                admitted.add(ticket);
+            }
+
+            if (nextEligibleAt != Long.MAX_VALUE && this.scheduledDrain == null) {
+                this.scheduledDrain = this.timer.schedule(() -> {
+                    synchronized (this) {
+                        this.scheduledDrain = null;
+                    }
+                    this.drain();
+                }, nextEligibleAt - now, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        //emit outside of the lock, subscribers are likely to start connecting right away
+        for (final Ticket ticket : admitted) {
+            log.trace("Admitting connection to {}", ticket.endpoint);
+            final Permit permit = new Permit(ticket.endpoint);
+            ticket.sink.success(permit);
+            if (ticket.cancelled) { //the permit might not have arrived
+                permit.release();
+            }
+        }
+    }
+
+    private void release(final String endpoint, final Outcome outcome, final boolean returnSlot) {
+        synchronized (this) {
+            if (returnSlot) {
+                this.permitsInUse--;
+            }
+            final long now = System.currentTimeMillis();
+            this.backoffs.values().removeIf(backoff -> backoff.notBefore + BACKOFF_RETENTION_MILLIS < now);
+            if (outcome == Outcome.SUCCESS) {
+                this.backoffs.remove(endpoint);
+            } else if (outcome == Outcome.FAILURE) {
+                final Backoff backoff = this.backoffs.computeIfAbsent(endpoint, __ -> new Backoff());
+                backoff.failures++;
+                final long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(backoff.failures - 1, 16));
+                final long jitteredDelay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                backoff.notBefore = now + jitteredDelay;
+                log.debug("Backing off from endpoint {} for {}ms after {} failures", endpoint, jitteredDelay, backoff.failures);
+            }
+        }
+        this.drain();
+    }
+
+    /**
+     * Permission to go ahead with establishing a connection. Hand it back exactly once by calling one of its methods,
+     * any further calls are ignored.
+     * <p>
+     * A permit that is not handed back in time gives up its slot to the next connection in the queue. Taking long is
+     * not held against the endpoint, but the outcome reported later on still is.
+     */
+    public class Permit {
+        private final String endpoint;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final AtomicBoolean slotReturned = new AtomicBoolean(false);
+        private final Disposable timeout;
+
+        private Permit(final String endpoint) {
+            this.endpoint = endpoint;
+            this.timeout = AdmissionControl.this.timer.schedule(() -> {
+                if (this.slotReturned.compareAndSet(false, true)) {
+                    log.debug("Connection to {} did not get established in time, freeing its slot", endpoint);
+                    AdmissionControl.this.release(endpoint, Outcome.ABANDONED, true);
+                }
+            }, PERMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * The connection has been established.
+         */
+        public void succeeded() {
+            this.release(Outcome.SUCCESS);
+        }
+
+        /**
+         * The connection could not be established, due to the endpoint misbehaving.
+         */
+        public void failed() {
+            this.release(Outcome.FAILURE);
+        }
+
+        /**
+         * The connection attempt has been abandoned, for reasons unrelated to the endpoint.
+         */
+        public void release() {
+            this.release(Outcome.ABANDONED);
+        }
+
+        private void release(final Outcome outcome) {
+            if (this.released.compareAndSet(false, true)) {
+                this.timeout.dispose();
+                AdmissionControl.this.release(this.endpoint, outcome, this.slotReturned.compareAndSet(false, true));
+            }
+        }
+    }
+
+    private static class Ticket {
+        private final String endpoint;
+        private final boolean prioritized;
+        private final long sequence;
+        private final MonoSink<Permit> sink;
+        private volatile boolean cancelled = false;
+
+        private Ticket(final String endpoint, final boolean prioritized, final long sequence,
+                       final MonoSink<Permit> sink) {
+            this.endpoint = endpoint;
+            this.prioritized = prioritized;
+            this.sequence = sequence;
+            this.sink = sink;
+        }
+    }
+
+    private enum Outcome {
+        SUCCESS,
+        FAILURE,
+        ABANDONED
+    }
+
+    private static class Backoff {
+        private int failures = 0;
+        private long notBefore = 0;
+    }
+}
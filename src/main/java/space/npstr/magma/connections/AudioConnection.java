@@ -17,7 +17,6 @@
 package space.npstr.magma.connections;
 
 import com.iwebpp.crypto.TweetNaclFast;
-import com.sun.jna.ptr.PointerByReference;
 import net.dv8tion.jda.core.audio.AudioPacket;
 import net.dv8tion.jda.core.audio.AudioSendHandler;
 import net.dv8tion.jda.core.audio.factory.IAudioSendFactory;
@@ -27,13 +26,19 @@ import net.dv8tion.jda.core.audio.hooks.ConnectionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.Disposable;
-import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.UnicastProcessor;
 import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.Config;
 import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.FrameDuration;
+import space.npstr.magma.FramedSendHandler;
+import space.npstr.magma.Mailbox;
+import space.npstr.magma.MonoSendHandler;
+import space.npstr.magma.OpusFrameSendHandler;
+import space.npstr.magma.PcmSendHandler;
+import space.npstr.magma.ReadinessNotifyingSendHandler;
 import space.npstr.magma.events.audio.lifecycle.UpdateSendHandler;
-import tomp2p.opuswrapper.Opus;
 
 import javax.annotation.Nullable;
 import java.net.DatagramPacket;
@@ -41,9 +46,14 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
@@ -66,11 +76,25 @@ public class AudioConnection {
 
     public static final long MAX_UINT_32 = 4294967295L;
 
+    //how often hibernating connections ask plain send handlers whether they are able to provide again
+    private static final Duration WAKE_PROBE_INTERVAL = Duration.ofMillis(250);
+    private static final long FRAME_MILLIS = 20;
+
+    private enum Idleness {
+        ACTIVE,      // the send system is running
+        PARKED,      // the send system has been shut down
+        HIBERNATING  // the send system, the encoder and the udp socket have been released
+    }
+
     private final IAudioSendFactory sendFactory;
-    private final AudioWebSocket webSocket;
-    private final DatagramSocket udpSocket;
-    private final FluxSink<UpdateSendHandler> sendHandlerSink;
-    private final Disposable audioConnectionSubscription;
+    @Nullable
+    private volatile AudioWebSocket webSocket;
+    //only used for udp discovery, the send systems send from sockets of their own. opened on demand.
+    @Nullable
+    private DatagramSocket udpSocket;
+    //serializes all changes to the send handler, the encoder and the send system. elastic, as shutting down send
+    //systems blocks.
+    private final Mailbox<Runnable> sendSystemMailbox = new Mailbox<>(Runnable::run, Schedulers.elastic());
 
     //udp connection info
     @Nullable
@@ -85,31 +109,62 @@ public class AudioConnection {
 
     @Nullable
     private volatile AudioSendHandler sendHandler;
+    //held by the packet provider while it produces packets. send systems do not wait for their threads when shut
+    //down, so the encoder may only be destroyed while holding this, or a late packet could use freed native memory.
+    private final Object producerLock = new Object();
+    //guarded by the producer lock
     @Nullable
-    private PointerByReference opusEncoder;
+    private OpusEncoder opusEncoder;
     @Nullable
     private IAudioSendSystem sendSystem;
+    //kept across send systems, so that the sequence and timestamp of our packets carry on after parking
+    private final PacketProvider packetProvider;
+    //the send system that has been started already. the udp target and key may change while it is running, for
+    //example when the websocket had to reconnect, and it should not be started again when they do.
+    @Nullable
+    private IAudioSendSystem startedSendSystem;
 
     private final AtomicLong nonce = new AtomicLong(0);
+    //incremented on each session reset, so that late results of an old session's udp discovery are ignored
+    private final AtomicInteger sessionGeneration = new AtomicInteger(0);
+
+    private final AtomicBoolean speaking = new AtomicBoolean(false);
+    private final long speakingReleaseDelayNanos;
+
+    //readiness as last reported by a notifying send handler, plain send handlers are always considered ready
+    private volatile boolean sendHandlerReady = true;
+    private final long hibernationDelayNanos;
+    private final FrameDuration defaultFrameDuration;
+    //how many 20ms chunks of audio the packets of the current send handler carry
+    private volatile int chunksPerPacket = 1;
+    //channels of the pcm audio of the current send handler
+    private volatile int channels = OPUS_CHANNEL_COUNT;
+    @Nullable
+    private ShortBuffer pcmBuffer;
+    // these are guarded by this
+    private Idleness idleness = Idleness.ACTIVE;
+    @Nullable
+    private Disposable scheduledHibernation;
+    @Nullable
+    private Disposable wakeProbe;
+    private final AtomicBoolean idlingRequested = new AtomicBoolean(false);
 
-    private volatile boolean speaking = false;
-
-    public AudioConnection(final AudioWebSocket webSocket, final IAudioSendFactory sendFactory) {
-        try {
-            this.udpSocket = new DatagramSocket();
-        } catch (final SocketException e) {
-            throw new RuntimeException("Failed to create udpSocket", e);
-        }
-
-        this.webSocket = webSocket;
+    /**
+     * @param config
+     *         speaking, hibernation and pipelining settings are taken from this
+     */
+    public AudioConnection(final IAudioSendFactory sendFactory, final Config config) {
         this.sendFactory = sendFactory;
+        this.speakingReleaseDelayNanos = config.getSpeakingReleaseDelay().toNanos();
+        this.hibernationDelayNanos = config.getHibernationDelay().toNanos();
+        this.defaultFrameDuration = config.getFrameDuration();
+        this.packetProvider = config.isPipelinedSending()
+                ? new PipelinedPacketProvider(frameCountOf(config.getLookAhead()))
+                : new PacketProvider();
+    }
 
-        final UnicastProcessor<UpdateSendHandler> sendHandlerProcessor = UnicastProcessor.create();
-
-        this.sendHandlerSink = sendHandlerProcessor.sink();
-        this.audioConnectionSubscription = sendHandlerProcessor
-                .subscribeOn(Schedulers.single())
-                .subscribe(this::handleSendHandlerUpdate);
+    private static int frameCountOf(final Duration duration) {
+        return (int) Math.max(1, (duration.toMillis() + FRAME_MILLIS - 1) / FRAME_MILLIS);
     }
 
     //todo eventify calls in this class?
@@ -121,25 +176,55 @@ public class AudioConnection {
     }
 
     public void updateSendHandler(final UpdateSendHandler updateSendHandler) {
-        this.sendHandlerSink.next(updateSendHandler);
+        this.sendSystemMailbox.post(() -> this.handleSendHandlerUpdate(updateSendHandler));
+    }
+
+    /**
+     * @return true if we told Discord that we are speaking
+     */
+    boolean isSpeaking() {
+        return this.speaking.get();
+    }
+
+    /**
+     * @param webSocket
+     *         the websocket that negotiates the udp target and encryption for this connection, and receives our speaking
+     *         updates
+     */
+    void setWebSocket(final AudioWebSocket webSocket) {
+        this.webSocket = webSocket;
+    }
+
+    /**
+     * Forget the udp target and encryption of the current session. No packets will be provided until they have been
+     * negotiated for a new session. Everything else, most notably the udp socket, the encoder and the send system,
+     * is kept.
+     * <p>
+     * The speaking state belongs to the session too: the new session has to be told that we speak once audio flows
+     * again.
+     */
+    void resetSession() {
+        //not racing a batch that is about to tell the old session that we speak
+        synchronized (this.producerLock) {
+            this.sessionGeneration.incrementAndGet();
+            this.packetProvider.discardPrepared();
+            this.udpTargetAddress = null;
+            this.ssrc = null;
+            this.secretKey = null;
+            this.encryptionMode = null;
+            this.speaking.set(false);
+        }
     }
 
     void shutdown() {
-        this.audioConnectionSubscription.dispose();
+        this.sendSystemMailbox.close();
         this.setSpeaking(false);
-        if (this.sendSystem != null) {
-            this.sendSystem.shutdown();
-            this.sendSystem = null;
-        }
-        if (this.opusEncoder != null) {
-            Opus.INSTANCE.opus_encoder_destroy(this.opusEncoder);
-            this.opusEncoder = null;
-        }
+        this.tearDownSendSystem();
+        this.closeUdpSocket();
 
         this.udpTargetAddress = null;
         this.ssrc = null;
         this.secretKey = null;
-        this.sendHandler = null;
     }
 
     private void handleSendHandlerUpdate(final UpdateSendHandler event) {
@@ -151,34 +236,189 @@ public class AudioConnection {
         }
     }
 
-    private void tearDownSendSystem() {
-        if (this.sendSystem != null) {
-            this.sendSystem.shutdown();
-            this.sendSystem = null;
+    private synchronized void tearDownSendSystem() {
+        synchronized (this.producerLock) {
+            this.replaceSendHandler(null);
         }
+        this.becomeActive();
+        this.shutDownSendSystem();
+        this.destroyEncoder();
+    }
+
 
-        if (this.opusEncoder != null) {
-            Opus.INSTANCE.opus_encoder_destroy(this.opusEncoder);
-            this.opusEncoder = null;
+    private synchronized void setupSendSystem(final AudioSendHandler sendHandler) {
+        //the packet provider sees either the old send handler and encoder, or the new ones, never a mix of them, even
+        //when they differ in their channels
+        synchronized (this.producerLock) {
+            this.replaceSendHandler(sendHandler);
+            this.ensureEncoder();
+        }
+        this.becomeActive();
+        if (this.sendSystem == null) {
+            this.sendSystem = this.sendFactory.createSendSystem(this.packetProvider);
         }
+        this.startSendSystemIfReady();
     }
 
+    //creates an encoder matching the channels of the send handler, unless it provides opus already
+    private void ensureEncoder() {
+        synchronized (this.producerLock) {
+            final AudioSendHandler sendHandler = this.sendHandler;
+            if (sendHandler == null || sendHandler.isOpus()) {
+                return;
+            }
+            if (this.opusEncoder != null && this.opusEncoder.getChannels() == this.channels) {
+                return;
+            }
+            this.destroyEncoder();
+            this.opusEncoder = new OpusEncoder(this.channels);
+        }
+    }
 
-    private void setupSendSystem(final AudioSendHandler sendHandler) {
-        this.sendHandler = sendHandler;
-        if (this.sendSystem == null) {
-            final IntBuffer error = IntBuffer.allocate(4);
+    private void destroyEncoder() {
+        synchronized (this.producerLock) {
             if (this.opusEncoder != null) {
-                Opus.INSTANCE.opus_encoder_destroy(this.opusEncoder);
+                this.opusEncoder.destroy();
+                this.opusEncoder = null;
             }
-            this.opusEncoder = Opus.INSTANCE.opus_encoder_create(OPUS_SAMPLE_RATE, OPUS_CHANNEL_COUNT, Opus.OPUS_APPLICATION_AUDIO, error);
+        }
+    }
+
+    //called while holding the producer lock
+    private void replaceSendHandler(@Nullable final AudioSendHandler sendHandler) {
+        final AudioSendHandler previous = this.sendHandler;
+        if (previous == sendHandler) {
+            return;
+        }
+        if (previous instanceof ReadinessNotifyingSendHandler) {
+            ((ReadinessNotifyingSendHandler) previous).setReadinessListener(null);
+        }
+        this.sendHandlerReady = true;
+        this.chunksPerPacket = this.chunksPerPacketOf(sendHandler);
+        this.channels = sendHandler instanceof MonoSendHandler ? 1 : OPUS_CHANNEL_COUNT;
+        this.sendHandler = sendHandler;
+        if (sendHandler instanceof ReadinessNotifyingSendHandler) {
+            ((ReadinessNotifyingSendHandler) sendHandler).setReadinessListener(
+                    canProvide -> this.onReadinessChanged(sendHandler, canProvide));
+        }
+    }
+
+    private int chunksPerPacketOf(@Nullable final AudioSendHandler sendHandler) {
+        if (sendHandler == null || sendHandler.isOpus()) {
+            return 1;
+        }
+        final FrameDuration frameDuration = sendHandler instanceof FramedSendHandler
+                ? ((FramedSendHandler) sendHandler).getFrameDuration()
+                : this.defaultFrameDuration;
+        return frameDuration.getChunks();
+    }
+
+    // ################################################################################
+    // #                          Parking and hibernation
+    // ################################################################################
+
+    private void onReadinessChanged(final AudioSendHandler sendHandler, final boolean canProvide) {
+        if (this.sendHandler != sendHandler) {
+            return; //late notification of a replaced send handler
+        }
+        this.sendHandlerReady = canProvide;
+        if (canProvide) {
+            this.sendSystemMailbox.post(this::wake);
+        }
+    }
+
+    //called by the send system for each frame that the send handler was unable to provide, after the speaking state
+    //has been updated
+    private void onIdleFrame(final long idleNanos) {
+        if (this.speaking.get()) {
+            return;
+        }
+        if (!this.sendHandlerReady) {
+            this.requestIdling(this::park);
+        } else if (this.hibernationDelayNanos > 0 && idleNanos >= this.hibernationDelayNanos) {
+            this.requestIdling(() -> this.hibernate(Idleness.ACTIVE));
+        }
+    }
 
-            this.sendSystem = this.sendFactory.createSendSystem(new PacketProvider());
+    private void requestIdling(final Runnable idling) {
+        if (this.idlingRequested.compareAndSet(false, true)) {
+            this.sendSystemMailbox.post(idling);
         }
+    }
+
+    private synchronized void park() {
+        this.idlingRequested.set(false);
+        if (this.idleness != Idleness.ACTIVE || this.sendHandlerReady || this.speaking.get()) {
+            return; //things have changed since the request
+        }
+        log.trace("Parking send system");
+        this.shutDownSendSystem();
+        this.idleness = Idleness.PARKED;
+        if (this.hibernationDelayNanos > 0) {
+            this.scheduledHibernation = Schedulers.parallel().schedule(
+                    () -> this.sendSystemMailbox.post(() -> this.hibernate(Idleness.PARKED)),
+                    this.hibernationDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void hibernate(final Idleness expected) {
+        this.idlingRequested.set(false);
+        final AudioSendHandler sendHandler = this.sendHandler;
+        if (this.idleness != expected || sendHandler == null || this.speaking.get()) {
+            return; //things have changed since the request
+        }
+        log.trace("Hibernating");
+        this.shutDownSendSystem();
+        this.destroyEncoder();
+        this.closeUdpSocket();
+        this.idleness = Idleness.HIBERNATING;
+
+        //notifying send handlers wake us up by themselves
+        if (!(sendHandler instanceof ReadinessNotifyingSendHandler)) {
+            this.wakeProbe = Flux.interval(WAKE_PROBE_INTERVAL, Schedulers.parallel())
+                    .filter(__ -> sendHandler.canProvide())
+                    .next()
+                    .subscribe(__ -> this.sendSystemMailbox.post(this::wake));
+        }
+    }
+
+    private synchronized void wake() {
+        if (this.idleness == Idleness.ACTIVE || this.sendHandler == null) {
+            return;
+        }
+        log.trace("Waking up from {}", this.idleness);
+        if (this.idleness == Idleness.HIBERNATING) {
+            this.ensureEncoder();
+        }
+        this.becomeActive();
+        this.sendSystem = this.sendFactory.createSendSystem(this.packetProvider);
         this.startSendSystemIfReady();
     }
 
-    private void startSendSystemIfReady() {
+    private void shutDownSendSystem() {
+        if (this.sendSystem != null) {
+            this.sendSystem.shutdown();
+            this.sendSystem = null;
+        }
+        this.startedSendSystem = null;
+        //whatever has been prepared ahead would be stale by the time a new send system is started
+        this.packetProvider.awaitPrepared();
+        this.packetProvider.discardPrepared();
+    }
+
+    private void becomeActive() {
+        this.idleness = Idleness.ACTIVE;
+        if (this.scheduledHibernation != null) {
+            this.scheduledHibernation.dispose();
+            this.scheduledHibernation = null;
+        }
+        if (this.wakeProbe != null) {
+            this.wakeProbe.dispose();
+            this.wakeProbe = null;
+        }
+    }
+
+    private synchronized void startSendSystemIfReady() {
         final IAudioSendSystem sendSystem = this.sendSystem;
         if (this.sendHandler == null) {
             log.trace("Not ready cause no send handler");
@@ -197,18 +437,36 @@ public class AudioConnection {
             return;
         }
 
+        if (sendSystem == this.startedSendSystem) {
+            log.trace("Send system already started");
+            return;
+        }
+
         log.trace("Ready, starting send system");
         sendSystem.start();
+        this.startedSendSystem = sendSystem;
     }
 
     private void setSpeaking(final boolean isSpeaking) {
-        this.speaking = isSpeaking;
-        this.webSocket.setSpeaking(isSpeaking);
+        if (this.speaking.getAndSet(isSpeaking) == isSpeaking) {
+            return; //only tell the websocket about changes
+        }
+        final AudioWebSocket webSocket = this.webSocket;
+        if (webSocket != null) {
+            webSocket.setSpeaking(isSpeaking);
+        }
     }
 
     private class PacketProvider implements IPacketProvider {
         char seq = 0;           //Sequence of audio packets. Used to determine the order of the packets.
         int timestamp = 0;      //Used to sync up our packets within the same timeframe of other people talking.
+        long silentSince = -1;  //System.nanoTime() of the first frame of the current silence, -1 while there is audio
+        long idleSince = -1;    //System.nanoTime() of the first frame that the send handler was unable to provide
+        //reused by single packet requests, there is only ever one thread producing packets
+        private final DatagramPacket[] single = new DatagramPacket[1];
+        //ticks of the send system to stay quiet for, while the previous packet with long frames plays. only accessed
+        //by the timing thread.
+        int pacingTicks = 0;
 
         public PacketProvider() {
         }
@@ -232,57 +490,243 @@ public class AudioConnection {
         @Nullable
         @Override
         public DatagramPacket getNextPacket(final boolean changeTalking) {
-            DatagramPacket nextPacket = null;
+            if (this.pacingTicks > 0) {
+                this.pacingTicks--;
+                return null;
+            }
+            return this.paced(this.producePacket(changeTalking));
+        }
+
+        //send systems assume 20ms per packet, so a batch can only be handed out when that is true
+        @Override
+        public int getNextPackets(final boolean changeTalking, final DatagramPacket[] packets, final int offset,
+                                  final int length) {
+            if (AudioConnection.this.chunksPerPacket > 1) {
+                return IPacketProvider.super.getNextPackets(changeTalking, packets, offset, Math.min(length, 1));
+            }
+            return this.producePackets(changeTalking, packets, offset, length);
+        }
+
+        /**
+         * Longer frames are paced by the send system's 20ms ticks: after handing out a packet, nothing is handed out
+         * for the ticks of the remaining audio of that packet.
+         */
+        @Nullable
+        DatagramPacket paced(@Nullable final DatagramPacket packet) {
+            if (packet != null) {
+                this.pacingTicks = AudioConnection.this.chunksPerPacket - 1;
+            }
+            return packet;
+        }
+
+        /**
+         * Drop any packets that have been prepared ahead of time, because the session they were prepared for is over.
+         */
+        void discardPrepared() {
+            //nothing prepared ahead here
+        }
+
+        /**
+         * Wait for packets that are being prepared ahead of time right now.
+         */
+        void awaitPrepared() {
+            //nothing prepared ahead here
+        }
+
+        @Nullable
+        DatagramPacket producePacket(final boolean changeTalking) {
+            if (this.producePackets(changeTalking, this.single, 0, 1) == 0) {
+                return null;
+            }
+            final DatagramPacket packet = this.single[0];
+            this.single[0] = null;
+            return packet;
+        }
+
+        //pulls, encodes and encrypts the next packets, and keeps track of the speaking state. the connection state is
+        //read once for the whole batch, while holding the producer lock.
+        int producePackets(final boolean changeTalking, final DatagramPacket[] packets, final int offset,
+                           final int length) {
+            synchronized (AudioConnection.this.producerLock) {
+                return this.produceLockedPackets(changeTalking, packets, offset, length);
+            }
+        }
 
+        private int produceLockedPackets(final boolean changeTalking, final DatagramPacket[] packets, final int offset,
+                                         final int length) {
             final InetSocketAddress udpTargetAddress = AudioConnection.this.udpTargetAddress;
             final Integer ssrc = AudioConnection.this.ssrc;
             final byte[] secretKey = AudioConnection.this.secretKey;
             final EncryptionMode encryptionMode = AudioConnection.this.encryptionMode;
             final AudioSendHandler sendHandler = AudioConnection.this.sendHandler;
-
+            //swapped together with the send handler, so it always matches its channels
+            final OpusEncoder opusEncoder = AudioConnection.this.opusEncoder;
+            final boolean connected = udpTargetAddress != null
+                    && ssrc != null
+                    && secretKey != null
+                    && encryptionMode != null
+                    && sendHandler != null
+                    && (sendHandler.isOpus() || opusEncoder != null); //no encoder while hibernating or torn down
+
+            int count = 0;
             try {
-                if (udpTargetAddress != null
-                        && ssrc != null
-                        && secretKey != null
-                        && encryptionMode != null
-                        && sendHandler != null
-                        && sendHandler.canProvide()) {
-                    byte[] rawAudio = sendHandler.provide20MsAudio();
-                    if (rawAudio == null || rawAudio.length == 0) {
-                        if (AudioConnection.this.speaking && changeTalking)
-                            AudioConnection.this.setSpeaking(false);
-                    } else {
-                        if (!sendHandler.isOpus()) {
-                            rawAudio = AudioConnection.this.encodeToOpus(rawAudio);
+                while (count < length) {
+                    //only coming up empty handed on the first packet means that there is nothing to send, see the
+                    //docs of changeTalking
+                    final boolean changeTalkingNow = changeTalking && count == 0;
+                    if (!connected || !sendHandler.canProvide()) {
+                        if (changeTalkingNow) {
+                            this.onIdle();
                         }
-                        nextPacket = this.getDatagramPacket(rawAudio, ssrc, encryptionMode);
-                        if (!AudioConnection.this.speaking) {
-                            AudioConnection.this.setSpeaking(true);
+                        break;
+                    }
+                    this.idleSince = -1;
+                    final AudioPacket audioPacket;
+                    int chunks = 1;
+                    if (sendHandler instanceof OpusFrameSendHandler) {
+                        final ByteBuffer opus = ((OpusFrameSendHandler) sendHandler).provide20MsOpus();
+                        if (opus == null || !opus.hasRemaining()) {
+                            if (changeTalkingNow) {
+                                this.onSilence();
+                            }
+                            break;
                         }
-
-                        if (this.seq + 1 > Character.MAX_VALUE) {
-                            this.seq = 0;
-                        } else {
-                            this.seq++;
+                        audioPacket = new AudioPacket(this.seq, this.timestamp, ssrc, opus);
+                    } else if (sendHandler instanceof PcmSendHandler) {
+                        final PcmSendHandler pcmSendHandler = (PcmSendHandler) sendHandler;
+                        final ShortBuffer pcm = pcmSendHandler.provide20MsPcm();
+                        if (pcm == null || !pcm.hasRemaining()) {
+                            if (changeTalkingNow) {
+                                this.onSilence();
+                            }
+                            break;
+                        }
+                        chunks = AudioConnection.this.chunksPerPacket;
+                        final int chunkSamples = OPUS_FRAME_SIZE * opusEncoder.getChannels();
+                        audioPacket = new AudioPacket(this.seq, this.timestamp, ssrc,
+                                opusEncoder.encode(chunks > 1 || pcm.remaining() != chunkSamples
+                                        ? this.pullPcmChunks(pcmSendHandler, pcm, chunks, chunkSamples)
+                                        : pcm));
+                    } else {
+                        byte[] rawAudio = sendHandler.provide20MsAudio();
+                        if (rawAudio == null || rawAudio.length == 0) {
+                            if (changeTalkingNow) {
+                                this.onSilence();
+                            }
+                            break;
                         }
+                        if (!sendHandler.isOpus()) {
+                            chunks = AudioConnection.this.chunksPerPacket;
+                            final int chunkLength = OPUS_FRAME_SIZE * opusEncoder.getChannels() * Short.BYTES;
+                            if (chunks > 1 || rawAudio.length != chunkLength) {
+                                rawAudio = this.pullChunks(sendHandler, rawAudio, chunks, chunkLength);
+                            }
+                            rawAudio = opusEncoder.encode(rawAudio);
+                        }
+                        audioPacket = new AudioPacket(this.seq, this.timestamp, ssrc, rawAudio);
+                    }
+                    this.silentSince = -1;
+                    packets[offset + count] = this.getDatagramPacket(audioPacket, encryptionMode, udpTargetAddress,
+                            secretKey);
+                    count++;
+                    AudioConnection.this.setSpeaking(true);
+
+                    if (this.seq + 1 > Character.MAX_VALUE) {
+                        this.seq = 0;
+                    } else {
+                        this.seq++;
                     }
-                } else if (AudioConnection.this.speaking && changeTalking) {
-                    AudioConnection.this.setSpeaking(false);
+                    this.timestamp += chunks * AudioConnection.OPUS_FRAME_SIZE;
                 }
             } catch (final Exception e) {
                 log.error("Failed to get next packet", e);
             }
+            return count;
+        }
 
-            if (nextPacket != null) {
-                this.timestamp += AudioConnection.OPUS_FRAME_SIZE;
+        //pulls the remaining 20ms chunks of a long frame. the frame is padded with silence when the send handler runs dry
+        //halfway, or provides a short chunk, like the last one of a track, to keep its duration and with it the pacing
+        //intact. chunks that are too long are cut off.
+        private byte[] pullChunks(final AudioSendHandler sendHandler, final byte[] firstChunk, final int chunks,
+                                  final int chunkLength) {
+            final byte[] frame = new byte[chunkLength * chunks];
+            byte[] chunk = firstChunk;
+            for (int i = 0; i < chunks; i++) {
+                if (i > 0) {
+                    if (!sendHandler.canProvide()) {
+                        break;
+                    }
+                    chunk = sendHandler.provide20MsAudio();
+                    if (chunk == null) {
+                        break;
+                    }
+                }
+                System.arraycopy(chunk, 0, frame, i * chunkLength, Math.min(chunk.length, chunkLength));
+                if (chunk.length < chunkLength) {
+                    break;
+                }
+            }
+            return frame;
+        }
+
+        //same as pullChunks, for pcm samples
+        private ShortBuffer pullPcmChunks(final PcmSendHandler sendHandler, final ShortBuffer firstChunk,
+                                          final int chunks, final int chunkSamples) {
+            final ShortBuffer frame = AudioConnection.this.pcmBuffer(chunkSamples * chunks);
+            ShortBuffer chunk = firstChunk;
+            for (int i = 0; i < chunks; i++) {
+                if (i > 0) {
+                    if (!sendHandler.canProvide()) {
+                        break;
+                    }
+                    chunk = sendHandler.provide20MsPcm();
+                    if (chunk == null) {
+                        break;
+                    }
+                }
+                final int samples = chunk.remaining();
+                if (samples > chunkSamples) {
+                    chunk.limit(chunk.position() + chunkSamples);
+                }
+                frame.put(chunk);
+                if (samples < chunkSamples) {
+                    break;
+                }
+            }
+            while (frame.hasRemaining()) {
+                frame.put((short) 0);
             }
+            frame.flip();
+            return frame;
+        }
 
-            return nextPacket;
+        //the send handler is unable to provide, or we are not connected
+        private void onIdle() {
+            this.onSilence();
+            final long now = System.nanoTime();
+            if (this.idleSince < 0) {
+                this.idleSince = now;
+            }
+            AudioConnection.this.onIdleFrame(now - this.idleSince);
         }
 
-        private DatagramPacket getDatagramPacket(final byte[] rawAudio, final int ssrc, final EncryptionMode encryptionMode) {
-            final AudioPacket packet = new AudioPacket(this.seq, this.timestamp, ssrc, rawAudio);
+        //stop speaking only once the silence has lasted for the release delay
+        private void onSilence() {
+            if (!AudioConnection.this.speaking.get()) {
+                return;
+            }
+            final long now = System.nanoTime();
+            if (this.silentSince < 0) {
+                this.silentSince = now;
+            }
+            if (now - this.silentSince >= AudioConnection.this.speakingReleaseDelayNanos) {
+                AudioConnection.this.setSpeaking(false);
+                this.silentSince = -1;
+            }
+        }
 
+        private DatagramPacket getDatagramPacket(final AudioPacket packet, final EncryptionMode encryptionMode,
+                                                 final InetSocketAddress udpTargetAddress, final byte[] secretKey) {
             final byte[] nonceData;
             switch (encryptionMode) {
                 case XSALSA20_POLY1305:
@@ -298,7 +742,7 @@ public class AudioConnection {
                 default:
                     throw new IllegalStateException("Encryption mode [" + encryptionMode + "] is not supported!");
             }
-            return packet.asEncryptedUdpPacket(AudioConnection.this.udpTargetAddress, AudioConnection.this.secretKey, nonceData);
+            return packet.asEncryptedUdpPacket(udpTargetAddress, secretKey, nonceData);
         }
 
         //@formatter:off
@@ -325,30 +769,124 @@ public class AudioConnection {
 
 
     /**
-     * The code of this method has been copied almost fully from the AudioConnection class of JDA-Audio
+     * Prepares packets ahead on the shared frame worker pool, up to the configured look ahead, so the timing thread of
+     * the send system only hands out packets that are ready. A slow send handler or encoder of one connection does not
+     * delay the tick of the others this way, and the cpu work is spread across all cores.
+     * <p>
+     * The buffer absorbs stalls: when the send system comes back from a pause, the packets it missed are ready in the
+     * ring, and send systems that front-load get all of them at once to catch up. Send systems that poll one packet
+     * per tick keep their pace, and do not catch up on a stall of their own. Sequence numbers and timestamps are
+     * assigned when a packet is prepared, so they follow the audio, not the time the packet ends up being sent at.
+     * <p>
+     * Only one fill task of a connection runs at a time, which makes it the single producer of the ring.
      */
-    private byte[] encodeToOpus(final byte[] rawAudio) {
-        final ShortBuffer nonEncodedBuffer = ShortBuffer.allocate(rawAudio.length / 2);
-        final ByteBuffer encoded = ByteBuffer.allocate(4096);
-        for (int i = 0; i < rawAudio.length; i += 2) {
-            final int firstByte = (0x000000FF & rawAudio[i]);      //Promotes to int and handles the fact that it was unsigned.
-            final int secondByte = (0x000000FF & rawAudio[i + 1]);  //
+    private class PipelinedPacketProvider extends PacketProvider {
+        private final SpscRing<DatagramPacket> ring;
+        //only touched by the fill task
+        private final DatagramPacket[] batch;
+        private final AtomicBoolean filling = new AtomicBoolean(false);
+        private volatile boolean changeTalking = true;
+        private volatile boolean discardPrepared = false;
+
+        private PipelinedPacketProvider(final int depth) {
+            this.ring = new SpscRing<>(depth);
+            this.batch = new DatagramPacket[depth];
+        }
 
-            //Combines the 2 bytes into a short. Opus deals with unsigned shorts, not bytes.
-            final short toShort = (short) ((firstByte << 8) | secondByte);
+        @Nullable
+        @Override
+        public DatagramPacket getNextPacket(final boolean changeTalking) {
+            if (this.pacingTicks > 0) {
+                this.pacingTicks--;
+                return null;
+            }
+            this.beforePoll(changeTalking);
+            final DatagramPacket packet = this.ring.poll();
+            this.requestFill();
+            return this.paced(packet);
+        }
 
-            nonEncodedBuffer.put(toShort);
+        @Override
+        public int getNextPackets(final boolean changeTalking, final DatagramPacket[] packets, final int offset,
+                                  final int length) {
+            if (AudioConnection.this.chunksPerPacket > 1) {
+                return super.getNextPackets(changeTalking, packets, offset, length);
+            }
+            this.beforePoll(changeTalking);
+            int count = 0;
+            DatagramPacket packet;
+            while (count < length && (packet = this.ring.poll()) != null) {
+                packets[offset + count] = packet;
+                count++;
+            }
+            this.requestFill();
+            return count;
         }
-        nonEncodedBuffer.flip();
 
-        //TODO: check for 0 / negative value for error.
-        final int result = Opus.INSTANCE.opus_encode(this.opusEncoder, nonEncodedBuffer, OPUS_FRAME_SIZE, encoded, encoded.capacity());
+        private void beforePoll(final boolean changeTalking) {
+            this.changeTalking = changeTalking;
+            if (this.discardPrepared) {
+                this.discardPrepared = false;
+                this.ring.clear();
+            }
+        }
 
-        //ENCODING STOPS HERE
+        private void requestFill() {
+            if (this.filling.compareAndSet(false, true)) {
+                FrameWorkers.POOL.execute(this::fill);
+            }
+        }
 
-        final byte[] audio = new byte[result];
-        encoded.get(audio);
-        return audio;
+        @Override
+        void discardPrepared() {
+            this.discardPrepared = true; //the ring may only be cleared by the consumer
+        }
+
+        @Override
+        void awaitPrepared() {
+            while (this.filling.get()) {
+                Thread.yield();
+            }
+        }
+
+        private void fill() {
+            try {
+                //nothing to send right now if this comes up short, the next poll will try again
+                final int count = this.producePackets(this.changeTalking, this.batch, 0,
+                        this.ring.capacity() - this.ring.size());
+                for (int i = 0; i < count; i++) {
+                    this.ring.offer(this.batch[i]);
+                    this.batch[i] = null;
+                }
+            } catch (final Exception e) {
+                log.error("Failed to prepare packets", e);
+            } finally {
+                this.filling.set(false);
+            }
+        }
+    }
+
+    //shared by all pipelined connections, created on first use
+    private static class FrameWorkers {
+        private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                pool -> {
+                    final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("magma-frame-worker-" + thread.getPoolIndex());
+                    return thread;
+                },
+                null, true);
+    }
+
+
+    //a direct buffer in native order for assembling pcm samples, reused by the thread that produces packets
+    private ShortBuffer pcmBuffer(final int samples) {
+        ShortBuffer pcmBuffer = this.pcmBuffer;
+        if (pcmBuffer == null || pcmBuffer.capacity() < samples) {
+            pcmBuffer = OpusEncoder.directPcmBuffer(samples);
+            this.pcmBuffer = pcmBuffer;
+        }
+        pcmBuffer.clear().limit(samples);
+        return pcmBuffer;
     }
 
 
@@ -358,6 +896,7 @@ public class AudioConnection {
 
     public Mono<InetSocketAddress> handleUdpDiscovery(final InetSocketAddress targetAddress, final int ssrc) {
 
+        final int generation = this.sessionGeneration.get();
         final Supplier<InetSocketAddress> externalUdpAddressSupplier = () -> {
             InetSocketAddress externalAddress;
             int attempt = 0;
@@ -379,6 +918,10 @@ public class AudioConnection {
             }
 
             log.trace("Udp discovered: {}", externalAddress);
+            if (generation != this.sessionGeneration.get()) {
+                log.debug("Discarding udp discovery result of an outdated session");
+                return null;
+            }
             this.udpTargetAddress = targetAddress;
             this.ssrc = ssrc;
             this.startSendSystemIfReady();
@@ -389,6 +932,20 @@ public class AudioConnection {
                 .subscribeOn(Schedulers.elastic());//elastic scheduler is the correct choice for legacy blocking calls
     }
 
+    private synchronized DatagramSocket openUdpSocket() throws SocketException {
+        if (this.udpSocket == null || this.udpSocket.isClosed()) {
+            this.udpSocket = new DatagramSocket();
+        }
+        return this.udpSocket;
+    }
+
+    private synchronized void closeUdpSocket() {
+        if (this.udpSocket != null) {
+            this.udpSocket.close();
+            this.udpSocket = null;
+        }
+    }
+
     /**
      * The code of this method has been copied almost fully from the AudioWebSocket class of JDA-Audio
      * <p>
@@ -406,12 +963,13 @@ public class AudioConnection {
 
             //Construct our packet to be sent loaded with the byte buffer we store the ssrc in.
             final DatagramPacket discoveryPacket = new DatagramPacket(buffer.array(), buffer.array().length, remoteAddress);
-            this.udpSocket.send(discoveryPacket);
+            final DatagramSocket udpSocket = this.openUdpSocket();
+            udpSocket.send(discoveryPacket);
 
             //Discord responds to our packet, returning a packet containing our external ip and the port we connected through.
             final DatagramPacket receivedPacket = new DatagramPacket(new byte[70], 70);   //Give a buffer the same size as the one we sent.
-            this.udpSocket.setSoTimeout(1000);
-            this.udpSocket.receive(receivedPacket);
+            udpSocket.setSoTimeout(1000);
+            udpSocket.receive(receivedPacket);
 
             //The byte array returned by discord containing our external ip and the port that we used
             //to connect to discord with.
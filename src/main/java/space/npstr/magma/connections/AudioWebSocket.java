@@ -16,16 +16,11 @@
 
 package space.npstr.magma.connections;
 
-import net.dv8tion.jda.core.audio.factory.IAudioSendFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.reactive.socket.WebSocketHandler;
-import org.springframework.web.reactive.socket.client.WebSocketClient;
 import reactor.core.Disposable;
 import reactor.core.publisher.BaseSubscriber;
-import reactor.core.publisher.Flux;
-import reactor.core.publisher.FluxSink;
-import reactor.core.publisher.UnicastProcessor;
 import reactor.core.scheduler.Schedulers;
 import space.npstr.magma.AudioStackLifecyclePipeline;
 import space.npstr.magma.EncryptionMode;
@@ -43,20 +38,20 @@ import space.npstr.magma.events.audio.ws.in.Resumed;
 import space.npstr.magma.events.audio.ws.in.SessionDescription;
 import space.npstr.magma.events.audio.ws.in.UnknownWsEvent;
 import space.npstr.magma.events.audio.ws.in.WebSocketClosed;
-import space.npstr.magma.events.audio.ws.out.HeartbeatWsEvent;
 import space.npstr.magma.events.audio.ws.out.IdentifyWsEvent;
 import space.npstr.magma.events.audio.ws.out.OutboundWsEvent;
 import space.npstr.magma.events.audio.ws.out.ResumeWsEvent;
 import space.npstr.magma.events.audio.ws.out.SelectProtocolWsEvent;
 import space.npstr.magma.immutables.SessionInfo;
+import space.npstr.magma.transport.WebSocketTransport;
 
 import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 
@@ -64,60 +59,119 @@ import java.util.stream.Collectors;
  * Created by napster on 19.04.18.
  *
  * Handle the lifecycle of the Discord voice websocket connection.
+ * <p>
+ * Losing the websocket does not affect the {@link AudioConnection}: while the websocket resumes, or reconnects if
+ * resuming fails, the udp socket, the encryption key and the send system keep running, so audio keeps flowing.
  */
 public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
 
     private static final Logger log = LoggerFactory.getLogger(AudioWebSocket.class);
 
+    //give up resuming and reconnect instead after this many attempts in a row
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+
+    private enum State {
+        IDENTIFYING, // connecting a fresh session
+        RESUMING,    // connecting to resume the existing session
+        READY,       // session established
+        CLOSED
+    }
+
     private final SessionInfo session;
     private final URI wssEndpoint;
     private final AudioConnection audioConnection;
     private final AudioStackLifecyclePipeline lifecyclePipeline;
-    private final WebSocketClient webSocketClient;
+    private final WebSocketTransport webSocketTransport;
+    private final HeartbeatScheduler heartbeatScheduler;
+    private final AdmissionControl admissionControl;
 
     //drop events into this sink to have them sent to discord
-    private final FluxSink<OutboundWsEvent> audioWebSocketSink;
     //reusable, if prepareConnect() is called before reconnecting
     private final AudioWebSocketSessionHandler webSocketHandler;
 
     @Nullable
-    private Disposable heartbeatSubscription;
+    private HeartbeatScheduler.Registration heartbeatRegistration;
     private Disposable webSocketConnection;
+    //held while the connection is being established
+    @Nullable
+    private volatile AdmissionControl.Permit connectPermit;
+
+    private volatile State state = State.IDENTIFYING;
+    private int resumeAttempts = 0;
+    private volatile boolean speaking = false;
+    private volatile boolean prioritized;
 
 
-    public AudioWebSocket(final IAudioSendFactory sendFactory, final SessionInfo session,
-                          final WebSocketClient webSocketClient, final AudioStackLifecyclePipeline lifecyclePipeline) {
+    /**
+     * @param audioConnection
+     *         the audio connection to negotiate udp target and encryption for. May be handed over from the websocket of
+     *         a previous session, see {@link #closeAndDetachAudioConnection()}
+     * @param prioritized
+     *         whether the connection has audio to send, which lets it go ahead when admission to connect is limited
+     */
+    public AudioWebSocket(final SessionInfo session, final AudioConnection audioConnection,
+                          final WebSocketTransport webSocketTransport, final HeartbeatScheduler heartbeatScheduler,
+                          final AdmissionControl admissionControl, final AudioStackLifecyclePipeline lifecyclePipeline,
+                          final boolean prioritized) {
         this.session = session;
+        this.prioritized = prioritized;
         try {
             this.wssEndpoint = new URI(String.format("wss://%s/?v=4", session.getVoiceServerUpdate().getEndpoint()));
         } catch (final URISyntaxException e) {
             throw new RuntimeException("Endpoint " + session.getVoiceServerUpdate().getEndpoint() + " is not a valid URI", e);
         }
-        this.audioConnection = new AudioConnection(this, sendFactory);
+        this.audioConnection = audioConnection;
+        this.audioConnection.setWebSocket(this);
         this.lifecyclePipeline = lifecyclePipeline;
-        this.webSocketClient = webSocketClient;
-
+        this.webSocketTransport = webSocketTransport;
+        this.heartbeatScheduler = heartbeatScheduler;
+        this.admissionControl = admissionControl;
 
-        final UnicastProcessor<OutboundWsEvent> webSocketProcessor = UnicastProcessor.create();
-        this.audioWebSocketSink = webSocketProcessor.sink();
+        this.webSocketHandler = new AudioWebSocketSessionHandler(this);
+        this.webSocketConnection = this.connect(this.webSocketTransport, this.wssEndpoint, this.webSocketHandler);
+    }
 
-        this.webSocketHandler = new AudioWebSocketSessionHandler(webSocketProcessor, this);
-        this.webSocketConnection = this.connect(this.webSocketClient, this.wssEndpoint, this.webSocketHandler);
+    public SessionInfo getSessionInfo() {
+        return this.session;
     }
 
     public AudioConnection getAudioConnection() {
         return this.audioConnection;
     }
 
+    /**
+     * @param prioritized
+     *         whether the connection has audio to send, applies to the next time the websocket (re)connects
+     */
+    public void setPrioritized(final boolean prioritized) {
+        this.prioritized = prioritized;
+    }
+
     public void setSpeaking(final boolean isSpeaking) {
-        final int speakingMask = isSpeaking ? 1 : 0;
-        this.send(SpeakingWsEvent.builder()
-                .speakingMask(speakingMask)
-                .build());
+        this.speaking = isSpeaking;
+        //Discord does not want to hear from us before the session has been established. The latest speaking state is
+        //sent once that happens.
+        if (this.state == State.READY) {
+            this.sendSpeaking(isSpeaking);
+        }
     }
 
     public void close() {
-        this.closeEverything();
+        this.closeWebSocket();
+        this.audioConnection.shutdown();
+    }
+
+    /**
+     * Close the websocket, but leave the audio connection and its resources (udp socket, encoder, send system) running,
+     * so it can be handed over to the websocket of a new session, for example when moving to another voice server.
+     * Only udp discovery and key exchange will have to be redone then.
+     *
+     * @return the audio connection of this websocket
+     */
+    public AudioConnection closeAndDetachAudioConnection() {
+        this.closeWebSocket();
+        this.audioConnection.resetSession();
+        return this.audioConnection;
     }
 
     // ################################################################################
@@ -137,7 +191,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
         } else if (inboundEvent instanceof SessionDescription) {
             this.handleSessionDescription((SessionDescription) inboundEvent);
         } else if (inboundEvent instanceof HeartbeatAck) {
-            // noop
+            this.handleHeartbeatAck((HeartbeatAck) inboundEvent);
         } else if (inboundEvent instanceof WebSocketClosed) {
             this.handleWebSocketClosed((WebSocketClosed) inboundEvent);
         } else if (inboundEvent instanceof ClientDisconnect) {
@@ -145,7 +199,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
         } else if (inboundEvent instanceof Speaking) {
             // noop
         } else if (inboundEvent instanceof Resumed) {
-            // noop
+            this.handleResumed((Resumed) inboundEvent);
         } else if (inboundEvent instanceof Ignored) {
             log.trace("Ignored OP {}, payload: {}", inboundEvent.getOpCode(), ((Ignored) inboundEvent).getPayload());
         } else if (inboundEvent instanceof UnknownWsEvent) {
@@ -156,15 +210,17 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
     }
 
     private void handleHello(final Hello hello) {
-        this.heartbeatSubscription = Flux.interval(Duration.ofMillis(hello.getHeartbeatIntervalMillis()))
-                .doOnNext(tick -> log.trace("Sending heartbeat {}", tick))
-                .subscribeOn(Schedulers.single())
-                .subscribe(tick -> this.audioWebSocketSink.next(HeartbeatWsEvent.builder()
-                        .nonce(tick.intValue())
-                        .build())
-                );
+        //we may receive more than one hello when resuming
+        if (this.heartbeatRegistration != null) {
+            this.heartbeatRegistration.dispose();
+        }
+        this.heartbeatRegistration = this.heartbeatScheduler.register(this.session.getVoiceServerUpdate().getMember(),
+                hello.getHeartbeatIntervalMillis(), this::send, this::handleDeadSession);
 
-        this.audioWebSocketSink.next(IdentifyWsEvent.builder()
+        if (this.state == State.RESUMING) {
+            return; //we sent a resume already
+        }
+        this.webSocketHandler.send(IdentifyWsEvent.builder()
                 .userId(this.session.getUserId())
                 .guildId(this.session.getVoiceServerUpdate().getGuildId())
                 .sessionId(this.session.getVoiceServerUpdate().getSessionId())
@@ -188,7 +244,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
 
         this.audioConnection.handleUdpDiscovery(udpTargetAddress, ready.getSsrc())
                 .subscribeOn(Schedulers.single())
-                .subscribe(externalAddress -> this.audioWebSocketSink.next(
+                .subscribe(externalAddress -> this.webSocketHandler.send(
                         SelectProtocolWsEvent.builder()
                                 .protocol("udp")
                                 .host(externalAddress.getHostString())
@@ -202,30 +258,47 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
                 sessionDescription.getSecretKey(),
                 sessionDescription.getEncryptionMode()
         );
+        this.onSessionEstablished();
+    }
+
+    private void handleResumed(final Resumed resumed) {
+        log.info("Resumed");
+        this.onSessionEstablished();
+    }
+
+    private void handleHeartbeatAck(final HeartbeatAck heartbeatAck) {
+        final HeartbeatScheduler.Registration registration = this.heartbeatRegistration;
+        if (registration != null) {
+            registration.acknowledge(heartbeatAck.getNonce());
+        }
+    }
+
+    /**
+     * Called by the heartbeat scheduler when Discord stopped acknowledging our heartbeats.
+     */
+    private void handleDeadSession() {
+        log.info("Voice websocket stopped acknowledging heartbeats");
+        this.resume();
     }
 
     private void handleWebSocketClosed(final WebSocketClosed webSocketClosed) {
         final int code = webSocketClosed.getCode();
         log.info("Websocket closed with code {} and reason {}", code, webSocketClosed.getReason());
+        this.returnPermit(code == CloseCode.VOICE_SERVER_CRASHED
+                ? AdmissionControl.Permit::failed
+                : AdmissionControl.Permit::release);
 
         final boolean resume = (code == CloseCode.DISCONNECTED // according to discord docs
                 || code == CloseCode.VOICE_SERVER_CRASHED);    // according to discord docs
 
         if (resume) {
-            log.info("Resuming");
-            this.webSocketConnection.dispose();
-            this.webSocketHandler.prepareConnect();
-            this.webSocketConnection = this.connect(this.webSocketClient, this.wssEndpoint, this.webSocketHandler);
-            this.audioWebSocketSink.next(ResumeWsEvent.builder()
-                    .guildId(this.session.getVoiceServerUpdate().getGuildId())
-                    .sessionId(this.session.getVoiceServerUpdate().getSessionId())
-                    .token(this.session.getVoiceServerUpdate().getToken())
-                    .build());
+            this.resume();
+        } else if (this.state == State.RESUMING) {
+            log.info("Failed to resume");
+            this.reconnect();
         } else {
             log.info("Closing");
-            this.lifecyclePipeline.next(CloseWebSocketLcEvent.builder()
-                    .member(this.session.getVoiceServerUpdate().getMember())
-                    .build());
+            this.requestClose();
         }
     }
 
@@ -233,28 +306,133 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
     // #                                Internals
     // ################################################################################
 
-    private Disposable connect(final WebSocketClient client, final URI endpoint, final WebSocketHandler handler) {
-        return client.execute(endpoint, handler)
-                .log(log.getName() + ".WebSocketConnection", Level.FINEST) //FINEST = TRACE
-                .doOnError(t -> {
-                    log.error("Exception in websocket connection, closing", t);
-                    this.closeEverything();
+    private void onSessionEstablished() {
+        this.returnPermit(AdmissionControl.Permit::succeeded);
+        this.state = State.READY;
+        this.resumeAttempts = 0;
+        if (this.speaking) {
+            this.sendSpeaking(true);
+        }
+    }
+
+    /**
+     * Replace the websocket connection, resuming the existing session. Falls back to a reconnect if resuming keeps
+     * failing.
+     */
+    private synchronized void resume() {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        if (++this.resumeAttempts > MAX_RESUME_ATTEMPTS) {
+            log.info("Failed to resume {} times in a row", MAX_RESUME_ATTEMPTS);
+            this.reconnect();
+            return;
+        }
+
+        log.info("Resuming");
+        this.replaceConnection(State.RESUMING);
+        this.webSocketHandler.send(ResumeWsEvent.builder()
+                .guildId(this.session.getVoiceServerUpdate().getGuildId())
+                .sessionId(this.session.getVoiceServerUpdate().getSessionId())
+                .token(this.session.getVoiceServerUpdate().getToken())
+                .build());
+    }
+
+    /**
+     * Replace the websocket connection, identifying a fresh session. The audio connection will pick up the new udp
+     * target and encryption key once they have been negotiated.
+     */
+    private synchronized void reconnect() {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        log.info("Reconnecting");
+        this.resumeAttempts = 0;
+        this.replaceConnection(State.IDENTIFYING);
+    }
+
+    private void replaceConnection(final State nextState) {
+        this.returnPermit(AdmissionControl.Permit::release);
+        this.state = nextState;
+        if (this.heartbeatRegistration != null) {
+            this.heartbeatRegistration.dispose();
+            this.heartbeatRegistration = null;
+        }
+        this.webSocketHandler.close();
+        this.webSocketConnection.dispose();
+        this.webSocketHandler.prepareConnect();
+        this.webSocketConnection = this.connect(this.webSocketTransport, this.wssEndpoint, this.webSocketHandler);
+    }
+
+    private Disposable connect(final WebSocketTransport transport, final URI endpoint, final WebSocketHandler handler) {
+        //connections that have audio to send go first
+        return this.admissionControl.admit(endpoint.getHost(), this.prioritized)
+                .flatMap(permit -> {
+                    this.connectPermit = permit;
+                    return transport.execute(endpoint, handler);
                 })
+                .log(log.getName() + ".WebSocketConnection", Level.FINEST) //FINEST = TRACE
+                .doOnError(this::handleConnectionError)
                 .subscribeOn(Schedulers.single())
                 .subscribe();
     }
 
+    private void handleConnectionError(final Throwable t) {
+        this.returnPermit(AdmissionControl.Permit::failed);
+        switch (this.state) {
+            case READY:
+                log.error("Exception in websocket connection, resuming", t);
+                this.resume();
+                break;
+            case RESUMING:
+                log.error("Exception in websocket connection while resuming, reconnecting", t);
+                this.reconnect();
+                break;
+            case IDENTIFYING:
+                log.error("Exception in websocket connection, closing", t);
+                this.requestClose();
+                break;
+            case CLOSED:
+            default:
+                break;
+        }
+    }
+
+    private void returnPermit(final Consumer<AdmissionControl.Permit> outcome) {
+        final AdmissionControl.Permit permit = this.connectPermit;
+        this.connectPermit = null;
+        if (permit != null) {
+            outcome.accept(permit);
+        }
+    }
+
+    //closing has to go through the lifecycle pipeline, so that the audio stack knows about it
+    private void requestClose() {
+        this.lifecyclePipeline.next(CloseWebSocketLcEvent.builder()
+                .member(this.session.getVoiceServerUpdate().getMember())
+                .sessionInfo(this.session)
+                .build());
+    }
+
+    private void sendSpeaking(final boolean isSpeaking) {
+        final int speakingMask = isSpeaking ? 1 : 0;
+        this.send(SpeakingWsEvent.builder()
+                .speakingMask(speakingMask)
+                .build());
+    }
+
     private void send(final OutboundWsEvent outboundWsEvent) {
-        this.audioWebSocketSink.next(outboundWsEvent);
+        this.webSocketHandler.send(outboundWsEvent);
     }
 
-    private void closeEverything() {
-        log.trace("Closing everything");
+    private synchronized void closeWebSocket() {
+        log.trace("Closing websocket");
+        this.state = State.CLOSED;
+        this.returnPermit(AdmissionControl.Permit::release);
         this.webSocketHandler.close();
         this.webSocketConnection.dispose();
-        if (this.heartbeatSubscription != null) {
-            this.heartbeatSubscription.dispose();
+        if (this.heartbeatRegistration != null) {
+            this.heartbeatRegistration.dispose();
         }
-        this.audioConnection.shutdown();
     }
 }
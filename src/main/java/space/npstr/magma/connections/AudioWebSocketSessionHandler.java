@@ -22,16 +22,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.UnicastProcessor;
 import reactor.core.scheduler.Schedulers;
 import space.npstr.magma.events.audio.ws.in.InboundWsEvent;
 import space.npstr.magma.events.audio.ws.out.OutboundWsEvent;
 
 import javax.annotation.Nullable;
-import java.util.logging.Level;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by napster on 21.04.18.
@@ -40,29 +41,59 @@ public class AudioWebSocketSessionHandler implements WebSocketHandler {
     private static final Logger log = LoggerFactory.getLogger(AudioWebSocketSessionHandler.class);
     private final Subscriber<InboundWsEvent> inbound;
 
-    @SuppressWarnings("NullableProblems") //is never actually null
-    private volatile Flux<OutboundWsEvent> intermediaryOutbound;
-    @SuppressWarnings("NullableProblems") //is never actually null
-    private volatile FluxSink<OutboundWsEvent> intermediaryOutboundSink;
+    //these are guarded by this
+    //emits straight into the send flux of the current session, null while there is none subscribed
+    @Nullable
+    private FluxSink<OutboundWsEvent> outboundSink;
+    //events sent before the send flux of the session has been subscribed to
+    private final List<OutboundWsEvent> pending = new ArrayList<>();
+    private boolean closed = false;
+
     @Nullable
     private WebSocketSession session;
+    @Nullable
+    private Disposable inboundSubscription;
 
     /**
-     * @param outbound
-     *         Publisher of outbound events that shall be sent to Discord
      * @param inbound
      *         Subcriber to the events we will receive from Discord
      */
-    public AudioWebSocketSessionHandler(final Flux<OutboundWsEvent> outbound, final Subscriber<InboundWsEvent> inbound) {
+    public AudioWebSocketSessionHandler(final Subscriber<InboundWsEvent> inbound) {
         this.prepareConnect();
-        outbound.subscribe(this::process);
         this.inbound = inbound;
     }
 
     /**
-     * Close the session of this handler, if there is any.
+     * Send an event to Discord through the current session. Events sent before the session has been established are
+     * buffered, events sent after it has been closed are lost.
+     */
+    public void send(final OutboundWsEvent event) {
+        final FluxSink<OutboundWsEvent> sink;
+        synchronized (this) {
+            sink = this.outboundSink;
+            if (sink == null) {
+                if (!this.closed) {
+                    this.pending.add(event);
+                }
+                return;
+            }
+        }
+        sink.next(event);
+    }
+
+    /**
+     * Close the session of this handler, if there is any. Events received from the closed session, including its
+     * close event, are not passed on anymore.
      */
     public void close() {
+        synchronized (this) {
+            this.closed = true;
+            this.outboundSink = null;
+            this.pending.clear();
+        }
+        if (this.inboundSubscription != null) {
+            this.inboundSubscription.dispose();
+        }
         if (this.session != null) {
             this.session.close()
                     .subscribeOn(Schedulers.single())
@@ -71,17 +102,16 @@ public class AudioWebSocketSessionHandler implements WebSocketHandler {
     }
 
     /**
-     * Call this when planning to reuse this handler for another session.
-     * We need to replace the intermediary processor so that the new session can be subscribed to the original
-     * {@code Flux<OutboundWsEvent> outbound} constructor parameter.
+     * Call this when planning to reuse this handler for another session. Events sent after this are buffered until
+     * the next session has been established.
      * <p>
-     * Any outbound events buffered in the old processor will be lost upon calling this, which is ok,
+     * Any outbound events buffered for the old session will be lost upon calling this, which is ok,
      * given that this method is expected to be called when the connection has been closed.
      */
-    public void prepareConnect() {
-        final UnicastProcessor<OutboundWsEvent> intermediaryProcessor = UnicastProcessor.create();
-        this.intermediaryOutboundSink = intermediaryProcessor.sink();
-        this.intermediaryOutbound = intermediaryProcessor;
+    public synchronized void prepareConnect() {
+        this.closed = false;
+        this.outboundSink = null;
+        this.pending.clear();
     }
 
     @Override
@@ -101,25 +131,52 @@ public class AudioWebSocketSessionHandler implements WebSocketHandler {
 
         this.session = session;
         log.trace(session.getHandshakeInfo().toString());
-        session.receive()
-                .map(WebSocketMessage::getPayloadAsText)
-                .log(log.getName() + ".>>>", Level.FINEST) //FINEST = TRACE
-                .map(InboundWsEvent::from)
+        if (this.inboundSubscription != null) {
+            this.inboundSubscription.dispose();
+        }
+        //not subscribing the inbound subscriber itself, as it needs to outlive the session when resuming
+        this.inboundSubscription = session.receive()
+                .doOnNext(message -> {
+                    if (log.isTraceEnabled()) {
+                        log.trace(">>> {}", message.getPayloadAsText());
+                    }
+                })
+                //parse straight from the received bytes, no need to decode the whole payload into a string
+                .map(message -> InboundWsEvent.from(message.getPayload().asByteBuffer()))
                 .doOnTerminate(() -> log.trace("Receiving terminated"))
                 .subscribeOn(Schedulers.single())
-                .subscribe(this.inbound);
+                .subscribe(this.inbound::onNext, t -> log.error("Exception while receiving", t));
+
+        final Flux<OutboundWsEvent> outbound = Flux.create(sink -> {
+            synchronized (this) {
+                if (this.closed) {
+                    sink.complete();
+                    return;
+                }
+                this.pending.forEach(sink::next);
+                this.pending.clear();
+                this.outboundSink = sink;
+            }
+            sink.onDispose(() -> {
+                synchronized (this) {
+                    if (this.outboundSink == sink) {
+                        this.outboundSink = null;
+                    }
+                }
+            });
+        });
 
         return session
-                .send(this.intermediaryOutbound
-                        .map(OutboundWsEvent::asMessage)
-                        .log(log.getName() + ".<<<", Level.FINEST) //FINEST = TRACE
-                        .map(session::textMessage)
+                .send(outbound
+                        .doOnNext(event -> {
+                            if (log.isTraceEnabled()) {
+                                log.trace("<<< {}", event.asMessage());
+                            }
+                        })
+                        .map(event -> new WebSocketMessage(WebSocketMessage.Type.TEXT,
+                                event.writeMessage(session.bufferFactory())))
                 )
                 .doOnTerminate(() -> log.trace("Sending terminated"));
     }
 
-
-    private void process(final OutboundWsEvent event) {
-        this.intermediaryOutboundSink.next(event);
-    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.Member;
+import space.npstr.magma.events.audio.ws.out.HeartbeatWsEvent;
+import space.npstr.magma.events.audio.ws.out.OutboundWsEvent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Sends the heartbeats of all voice websockets from a single timer.
+ * <p>
+ * Registered sessions are kept in a hashed timer wheel: each slot of the wheel holds the sessions that are due when the
+ * wheel reaches it, so a tick only looks at the sessions of a single slot instead of all of them. All sessions that
+ * are due on the same tick are sent the same heartbeat event, so its payload is serialized only once per batch.
+ * <p>
+ * The nonce of each heartbeat is the time it was sent at, which gives us the round trip time of a session when Discord
+ * acknowledges it. Sessions that leave too many heartbeats unacknowledged are reported as dead.
+ */
+public class HeartbeatScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(HeartbeatScheduler.class);
+
+    private static final long TICK_MILLIS = 250;
+    private static final int WHEEL_SIZE = 256; //one round of the wheel covers 64 seconds
+
+    // only ever accessed by the ticking thread
+    private final List<List<Registration>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long tick = 0;
+
+    // registrations may come in from any thread, they are moved into the wheel on the next tick
+    private final Queue<Registration> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Disposable ticker;
+
+    private final int maxMissedAcks;
+    // latest registration of each member, for looking up metrics
+    private final Map<Member, Registration> registrations = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxMissedAcks
+     *         how many heartbeats in a row a session may leave unacknowledged before it is reported as dead, zero to
+     *         never report sessions as dead
+     */
+    public HeartbeatScheduler(final int maxMissedAcks) {
+        this.maxMissedAcks = maxMissedAcks;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel.add(new ArrayList<>());
+        }
+
+        this.ticker = Flux.interval(Duration.ofMillis(TICK_MILLIS), Duration.ofMillis(TICK_MILLIS), Schedulers.single())
+                .subscribe(__ -> this.onTick());
+    }
+
+    /**
+     * @param member
+     *         the member whose session shall be heartbeated
+     * @param intervalMillis
+     *         the heartbeat interval that Discord asked us to use for the session
+     * @param heartbeatSink
+     *         will be called with the heartbeats to be sent to Discord
+     * @param onDead
+     *         will be called once, if the session fails to acknowledge our heartbeats. The registration is disposed
+     *         before that happens.
+     *
+     * @return the registration of the session, to hand it the received acks, and to dispose it to stop heartbeating
+     */
+    public Registration register(final Member member, final long intervalMillis,
+                                 final Consumer<OutboundWsEvent> heartbeatSink, final Runnable onDead) {
+        final long intervalTicks = Math.max(1, (intervalMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        final Registration registration = new Registration(member, intervalTicks, heartbeatSink, onDead);
+        this.registrations.put(member, registration);
+        this.pendingRegistrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * @return round trip time of the most recently acknowledged heartbeat of the member's session, if there is any
+     */
+    public OptionalLong getRttMillis(final Member member) {
+        final Registration registration = this.registrations.get(member);
+        if (registration == null || registration.rttMillis < 0) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(registration.rttMillis);
+    }
+
+    /**
+     * Stop sending any heartbeats.
+     */
+    public void shutdown() {
+        this.ticker.dispose();
+        this.pendingRegistrations.clear();
+        this.registrations.clear();
+    }
+
+    // ################################################################################
+    // #                                Internals
+    // ################################################################################
+
+    private void onTick() {
+        this.tick++;
+
+        Registration pending;
+        while ((pending = this.pendingRegistrations.poll()) != null) {
+            if (!pending.isDisposed()) {
+                this.schedule(pending);
+            }
+        }
+
+        final List<Registration> slot = this.wheel.get(this.slotOf(this.tick));
+        final List<Registration> due = new ArrayList<>();
+        final Iterator<Registration> it = slot.iterator();
+        while (it.hasNext()) {
+            final Registration registration = it.next();
+            if (registration.isDisposed()) {
+                it.remove();
+            } else if (registration.remainingRounds > 0) {
+                registration.remainingRounds--;
+            } else {
+                it.remove();
+                due.add(registration);
+            }
+        }
+
+        if (due.isEmpty()) {
+            return;
+        }
+
+        final HeartbeatWsEvent heartbeat = HeartbeatWsEvent.builder()
+                .nonce(System.currentTimeMillis())
+                .build();
+        log.trace("Sending heartbeat {} to {} sessions", heartbeat.getNonce(), due.size());
+        for (final Registration registration : due) {
+            final int missedAcks = registration.awaitingAck ? registration.missedAcks.incrementAndGet() : 0;
+            if (this.maxMissedAcks > 0 && missedAcks >= this.maxMissedAcks) {
+                log.info("Session of member {} left {} heartbeats unacknowledged", registration.member, missedAcks);
+                registration.dispose();
+                this.runSafely(registration.onDead);
+                continue;
+            }
+
+            registration.awaitingAck = true;
+            registration.lastNonce = heartbeat.getNonce();
+            this.runSafely(() -> registration.heartbeatSink.accept(heartbeat));
+            this.schedule(registration);
+        }
+    }
+
+    private void schedule(final Registration registration) {
+        final long deadline = this.tick + registration.intervalTicks;
+        registration.remainingRounds = (registration.intervalTicks - 1) / WHEEL_SIZE;
+        this.wheel.get(this.slotOf(deadline)).add(registration);
+    }
+
+    private int slotOf(final long tick) {
+        return (int) (tick % WHEEL_SIZE);
+    }
+
+    private void runSafely(final Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (final Exception e) {
+            log.error("Uncaught exception while heartbeating", e);
+        }
+    }
+
+    public class Registration implements Disposable {
+        private final Member member;
+        private final long intervalTicks;
+        private final Consumer<OutboundWsEvent> heartbeatSink;
+        private final Runnable onDead;
+        private long remainingRounds = 0; // only ever accessed by the ticking thread
+        private volatile boolean disposed = false;
+
+        private volatile boolean awaitingAck = false;
+        private final AtomicInteger missedAcks = new AtomicInteger(0);
+        private volatile long rttMillis = -1;
+        //nonce of the last heartbeat sent, only acks of that one tell us the round trip time
+        private volatile long lastNonce = -1;
+
+        private Registration(final Member member, final long intervalTicks,
+                             final Consumer<OutboundWsEvent> heartbeatSink, final Runnable onDead) {
+            this.member = member;
+            this.intervalTicks = intervalTicks;
+            this.heartbeatSink = heartbeatSink;
+            this.onDead = onDead;
+        }
+
+        /**
+         * Call this when Discord acknowledges a heartbeat of this session.
+         *
+         * @param nonce
+         *         the nonce of the acknowledged heartbeat
+         */
+        public void acknowledge(final long nonce) {
+            this.awaitingAck = false;
+            this.missedAcks.set(0);
+            if (nonce != this.lastNonce) {
+                //acks without a nonce, or of an older heartbeat, still show that the session is alive
+                log.trace("Heartbeat {} of member {} acknowledged, not the last one sent", nonce, this.member);
+                return;
+            }
+            final long rtt = System.currentTimeMillis() - nonce;
+            if (rtt >= 0) {
+                this.rttMillis = rtt;
+            }
+            log.trace("Heartbeat {} of member {} acknowledged, rtt {}ms", nonce, this.member, rtt);
+        }
+
+        @Override
+        public void dispose() {
+            this.disposed = true;
+            HeartbeatScheduler.this.registrations.remove(this.member, this);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return this.disposed;
+        }
+    }
+}
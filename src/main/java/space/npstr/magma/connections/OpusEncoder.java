@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import com.sun.jna.ptr.PointerByReference;
+import space.npstr.magma.FrameDuration;
+import tomp2p.opuswrapper.Opus;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * A native opus encoder for 48KHz pcm audio. Not thread safe, and has to be destroyed to free its native memory.
+ */
+public class OpusEncoder {
+
+    private final int channels;
+    @Nullable
+    private PointerByReference encoder;
+    //direct buffer in native order, for samples that can not be handed to the encoder as they are
+    @Nullable
+    private ShortBuffer scratch;
+
+    /**
+     * @param channels
+     *         1 for mono, 2 for stereo
+     */
+    public OpusEncoder(final int channels) {
+        this.channels = channels;
+        final IntBuffer error = IntBuffer.allocate(4);
+        this.encoder = Opus.INSTANCE.opus_encoder_create(AudioConnection.OPUS_SAMPLE_RATE, channels, Opus.OPUS_APPLICATION_AUDIO, error);
+    }
+
+    public int getChannels() {
+        return this.channels;
+    }
+
+    /**
+     * The code of this method has been copied almost fully from the AudioConnection class of JDA-Audio
+     *
+     * @param rawAudio
+     *         16bit signed big endian pcm
+     */
+    public byte[] encode(final byte[] rawAudio) {
+        final ShortBuffer nonEncodedBuffer = ShortBuffer.allocate(rawAudio.length / 2);
+        for (int i = 0; i < rawAudio.length; i += 2) {
+            final int firstByte = (0x000000FF & rawAudio[i]);      //Promotes to int and handles the fact that it was unsigned.
+            final int secondByte = (0x000000FF & rawAudio[i + 1]);  //
+
+            //Combines the 2 bytes into a short. Opus deals with unsigned shorts, not bytes.
+            final short toShort = (short) ((firstByte << 8) | secondByte);
+
+            nonEncodedBuffer.put(toShort);
+        }
+        nonEncodedBuffer.flip();
+        return this.encode(nonEncodedBuffer);
+    }
+
+    /**
+     * Encodes the remaining samples of the buffer, which have to be 20, 40 or 60 milliseconds of audio. Buffers that
+     * are backed by an array or are direct in native order are handed to the encoder as they are, anything else is
+     * copied into one that is.
+     *
+     * @throws IllegalArgumentException
+     *         if the buffer holds audio of any other duration
+     * @throws IllegalStateException
+     *         if the encoder has been destroyed, or opus reports an error
+     */
+    public byte[] encode(final ShortBuffer pcm) {
+        final PointerByReference encoder = this.encoder;
+        if (encoder == null) {
+            throw new IllegalStateException("Encoder has been destroyed");
+        }
+        final int samples = pcm.remaining();
+        final int frameSize = samples / this.channels; //samples per channel
+        if (samples % this.channels != 0 || !isFrameSize(frameSize)) {
+            throw new IllegalArgumentException(String.format("Can not encode %d samples of %d channel audio, expected "
+                    + "20, 40 or 60 milliseconds of it", samples, this.channels));
+        }
+        ShortBuffer nonEncodedBuffer = pcm;
+        if (!pcm.hasArray() && !(pcm.isDirect() && pcm.order() == ByteOrder.nativeOrder())) {
+            nonEncodedBuffer = this.scratch(samples);
+            nonEncodedBuffer.put(pcm);
+            nonEncodedBuffer.flip();
+        }
+        final ByteBuffer encoded = ByteBuffer.allocate(4096);
+
+        final int result = Opus.INSTANCE.opus_encode(encoder, nonEncodedBuffer, frameSize, encoded, encoded.capacity());
+        if (result < 0) {
+            throw new IllegalStateException("Opus failed to encode a frame with error code " + result);
+        }
+
+        //ENCODING STOPS HERE
+
+        final byte[] audio = new byte[result];
+        encoded.get(audio);
+        return audio;
+    }
+
+    public void destroy() {
+        if (this.encoder != null) {
+            Opus.INSTANCE.opus_encoder_destroy(this.encoder);
+            this.encoder = null;
+        }
+    }
+
+    private static boolean isFrameSize(final int frameSize) {
+        for (final FrameDuration frameDuration : FrameDuration.values()) {
+            if (frameSize == AudioConnection.OPUS_FRAME_SIZE * frameDuration.getChunks()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ShortBuffer scratch(final int samples) {
+        ShortBuffer scratch = this.scratch;
+        if (scratch == null || scratch.capacity() < samples) {
+            scratch = directPcmBuffer(samples);
+            this.scratch = scratch;
+        }
+        scratch.clear().limit(samples);
+        return scratch;
+    }
+
+    /**
+     * @return a direct buffer in native order, which the encoder takes as it is
+     */
+    static ShortBuffer directPcmBuffer(final int samples) {
+        return ByteBuffer.allocateDirect(samples * Short.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+    }
+}
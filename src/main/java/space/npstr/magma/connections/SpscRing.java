@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring for handing elements from a single producer thread to a single consumer thread. The
+ * producer and the consumer may change over time, as long as there is only one of each at any moment.
+ */
+class SpscRing<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    //position of the next element to be polled, only advanced by the consumer
+    private final AtomicLong head = new AtomicLong(0);
+    //position of the next element to be offered, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong(0);
+
+    SpscRing(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity has to be at least one");
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Producer only.
+     *
+     * @return false if the ring is full, and the element has not been added
+     */
+    boolean offer(final E element) {
+        final long tail = this.tail.get();
+        if (tail - this.head.get() >= this.capacity) {
+            return false;
+        }
+        this.slots.lazySet(this.indexOf(tail), element);
+        this.tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the oldest element of the ring, or null if the ring is empty
+     */
+    @Nullable
+    E poll() {
+        final long head = this.head.get();
+        if (head >= this.tail.get()) {
+            return null;
+        }
+        final int index = this.indexOf(head);
+        final E element = this.slots.get(index);
+        this.slots.lazySet(index, null);
+        this.head.lazySet(head + 1);
+        return element;
+    }
+
+    /**
+     * Consumer only. Drops all elements of the ring.
+     */
+    void clear() {
+        while (this.poll() != null) {
+            //keep polling
+        }
+    }
+
+    /**
+     * @return number of elements in the ring. Exact only when called by the producer or the consumer.
+     */
+    int size() {
+        return (int) (this.tail.get() - this.head.get());
+    }
+
+    int capacity() {
+        return this.capacity;
+    }
+
+    private int indexOf(final long position) {
+        return (int) (position % this.capacity);
+    }
+}
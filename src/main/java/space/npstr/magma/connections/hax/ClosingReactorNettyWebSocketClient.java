@@ -0,0 +1,114 @@
+package space.npstr.magma.connections.hax;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.json.JSONObject;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.adapter.ReactorNettyWebSocketSession;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.http.client.HttpClientOptions;
+import reactor.ipc.netty.http.client.HttpClientResponse;
+import reactor.ipc.netty.http.websocket.WebsocketInbound;
+import reactor.ipc.netty.http.websocket.WebsocketOutbound;
+import space.npstr.magma.events.audio.ws.OpCode;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Reactor Netty answers close frames by itself and swallows them, so their close codes never reach us. We put a
+ * handler into the channel pipeline that takes note of them, and append them as text messages to the received
+ * messages of the session, same as {@link ClosingUndertowWebSocketClient} does.
+ * Rest of the file is copypasta of the superclass that is necessary to make that work.
+ */
+public class ClosingReactorNettyWebSocketClient extends ReactorNettyWebSocketClient {
+
+    private static final String CLOSE_FRAME_INTERCEPTOR = "magma-close-frame-interceptor";
+
+    public ClosingReactorNettyWebSocketClient(final Consumer<? super HttpClientOptions.Builder> options) {
+        super(options);
+    }
+
+    @Override
+    public Mono<Void> execute(final URI url, final HttpHeaders headers, final WebSocketHandler handler) {
+        final String protocols = StringUtils.collectionToCommaDelimitedString(this.beforeHandshake(url, headers, handler));
+        return this.getHttpClient()
+                .ws(url.toString(), nettyHeaders -> headers.forEach(nettyHeaders::set), protocols)
+                .flatMap(response -> response.receiveWebsocket((in, out) -> {
+                    final HandshakeInfo info = this.afterHandshake(url, toHttpHeaders(response));
+                    final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(out.alloc());
+
+                    // * * * * *
+                    // plug in our close frame interceptor
+
+                    final CloseFrameInterceptor interceptor = new CloseFrameInterceptor();
+                    in.context().addHandlerLast(CLOSE_FRAME_INTERCEPTOR, interceptor); //after the frame decoder
+                    final ReactorNettyWebSocketSession session = new ClosingSession(in, out, info, bufferFactory, interceptor);
+
+                    // * * * * *
+
+                    return handler.handle(session);
+                }));
+    }
+
+    private static HttpHeaders toHttpHeaders(final HttpClientResponse response) {
+        final HttpHeaders headers = new HttpHeaders();
+        response.responseHeaders().forEach(entry -> headers.add(entry.getKey(), entry.getValue()));
+        return headers;
+    }
+
+    private static class CloseFrameInterceptor extends ChannelInboundHandlerAdapter {
+        @Nullable
+        private volatile CloseWebSocketFrame closeFrame;
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            if (msg instanceof CloseWebSocketFrame) {
+                //keep a copy, the original is released once reactor netty is done with it
+                this.closeFrame = ((CloseWebSocketFrame) msg).copy();
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    private static class ClosingSession extends ReactorNettyWebSocketSession {
+        private final CloseFrameInterceptor interceptor;
+
+        private ClosingSession(final WebsocketInbound inbound, final WebsocketOutbound outbound, final HandshakeInfo info,
+                               final NettyDataBufferFactory bufferFactory, final CloseFrameInterceptor interceptor) {
+            super(inbound, outbound, info, bufferFactory);
+            this.interceptor = interceptor;
+        }
+
+        @Override
+        public Flux<WebSocketMessage> receive() {
+            return super.receive()
+                    .concatWith(Mono.defer(() -> {
+                        final CloseWebSocketFrame closeFrame = this.interceptor.closeFrame;
+                        if (closeFrame == null) {
+                            return Mono.empty();
+                        }
+                        this.interceptor.closeFrame = null;
+                        final String message = new JSONObject()
+                                .put("op", OpCode.WEBSOCKET_CLOSE)
+                                .put("d", new JSONObject()
+                                        .put("code", closeFrame.statusCode())
+                                        .put("reason", closeFrame.reasonText()))
+                                .toString();
+                        closeFrame.release();
+                        final byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                        return Mono.just(new WebSocketMessage(WebSocketMessage.Type.TEXT, this.bufferFactory().wrap(bytes)));
+                    }));
+        }
+    }
+}
@@ -15,11 +15,14 @@ import org.springframework.web.reactive.socket.adapter.UndertowWebSocketSession;
 import org.springframework.web.reactive.socket.client.UndertowWebSocketClient;
 import org.xnio.IoFuture;
 import org.xnio.XnioWorker;
+import org.xnio.ssl.XnioSsl;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.MonoProcessor;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -29,7 +32,8 @@ import java.util.function.Consumer;
  * Created by napster on 22.04.18.
  * <p>
  * Plugs in our custom {@link ClosingUndertowWebSocketHandlerAdapter}, look below for the one changed line.
- * Rest of the file is copypasta of the superclass(es) that is necessary to make that work.
+ * Rest of the file is copypasta of the superclass(es) that is necessary to make that work, plus connecting to addresses
+ * that have been resolved already.
  */
 public class ClosingUndertowWebSocketClient extends UndertowWebSocketClient {
 
@@ -41,14 +45,36 @@ public class ClosingUndertowWebSocketClient extends UndertowWebSocketClient {
 
     @Override
     public Mono<Void> execute(final URI url, final HttpHeaders headers, final WebSocketHandler handler) {
-        return this.executeInternal(url, headers, handler);
+        return this.executeInternal(url, url, headers, handler, builder -> {});
     }
 
-    private Mono<Void> executeInternal(final URI url, final HttpHeaders headers, final WebSocketHandler handler) {
+    /**
+     * Connect to an address that has been resolved already, instead of having Undertow resolve the host of the url.
+     * The host of the url is still sent in the Host header, the ssl has to take care of using it for TLS.
+     */
+    public Mono<Void> execute(final URI url, final InetAddress address, final XnioSsl ssl,
+                              final WebSocketHandler handler) {
+        final int port = url.getPort() != -1 ? url.getPort() : ("wss".equals(url.getScheme()) ? 443 : 80);
+        final URI addressUrl;
+        try {
+            addressUrl = new URI(url.getScheme(), url.getUserInfo(), address.getHostAddress(), port, url.getPath(),
+                    url.getQuery(), url.getFragment());
+        } catch (final URISyntaxException e) {
+            return Mono.error(e);
+        }
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.HOST, url.getHost() + ":" + port);
+        return this.executeInternal(addressUrl, url, headers, handler, builder -> builder.setSsl(ssl));
+    }
+
+    private Mono<Void> executeInternal(final URI connectUrl, final URI url, final HttpHeaders headers,
+                                       final WebSocketHandler handler,
+                                       final Consumer<WebSocketClient.ConnectionBuilder> connectionConsumer) {
         final MonoProcessor<Void> completion = MonoProcessor.create();
         return Mono.fromCallable(
                 () -> {
-                    WebSocketClient.ConnectionBuilder builder = this.createConnectionBuilder(url);
+                    WebSocketClient.ConnectionBuilder builder = this.createConnectionBuilder(connectUrl);
+                    connectionConsumer.accept(builder);
                     List<String> protocols = this.beforeHandshake(url, headers, handler);
                     DefaultNegotiation negotiation = new DefaultNegotiation(protocols, headers, builder);
                     builder.setClientNegotiation(negotiation);
@@ -19,6 +19,9 @@ package space.npstr.magma.events.audio.lifecycle;
 import org.immutables.value.Value;
 import space.npstr.magma.Member;
 import space.npstr.magma.immutables.ImmutableLcEvent;
+import space.npstr.magma.immutables.SessionInfo;
+
+import java.util.Optional;
 
 /**
  * Created by napster on 24.04.18.
@@ -30,4 +33,10 @@ public abstract class CloseWebSocket implements LifecycleEvent {
     @Override
     public abstract Member getMember();
 
+    /**
+     * @return the session to close, for closes that we request ourselves after the websocket of a session failed for
+     * good. Those are stale once the session has been replaced, and do not supersede any connects. Empty for closes
+     * requested by the user, which close whatever session there is.
+     */
+    public abstract Optional<SessionInfo> getSessionInfo();
 }
@@ -18,7 +18,10 @@ package space.npstr.magma.events.audio.ws;
 
 import org.immutables.value.Value;
 import org.json.JSONObject;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import space.npstr.magma.events.audio.ws.in.InboundWsEvent;
+import space.npstr.magma.events.audio.ws.out.MessageTemplate;
 import space.npstr.magma.events.audio.ws.out.OutboundWsEvent;
 import space.npstr.magma.immutables.ImmutableWsEvent;
 
@@ -29,6 +32,9 @@ import space.npstr.magma.immutables.ImmutableWsEvent;
 @ImmutableWsEvent
 public abstract class Speaking implements InboundWsEvent, OutboundWsEvent {
 
+    private static final MessageTemplate TEMPLATE = new MessageTemplate(
+            "{\"op\":" + OpCode.SPEAKING + ",\"d\":{\"delay\":0,\"speaking\":", "}}");
+
     @Override
     public int getOpCode() {
         return OpCode.SPEAKING;
@@ -42,4 +48,9 @@ public abstract class Speaking implements InboundWsEvent, OutboundWsEvent {
                 .put("speaking", this.getSpeakingMask())
                 .put("delay", 0);
     }
+
+    @Override
+    public DataBuffer writeMessage(final DataBufferFactory bufferFactory) {
+        return TEMPLATE.write(bufferFactory, this.getSpeakingMask());
+    }
 }
@@ -32,4 +32,9 @@ public abstract class HeartbeatAck implements InboundWsEvent {
         return OpCode.HEARTBEAT_ACK;
     }
 
+    /**
+     * @return the nonce of the heartbeat that is being acknowledged
+     */
+    public abstract long getNonce();
+
 }
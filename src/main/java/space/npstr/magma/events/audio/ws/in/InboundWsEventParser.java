@@ -0,0 +1,507 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.events.audio.ws.in;
+
+import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.connections.AudioConnection;
+import space.npstr.magma.events.audio.ws.OpCode;
+import space.npstr.magma.events.audio.ws.SpeakingWsEvent;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Parses the json payloads of the voice websocket straight from their bytes, reading only the fields we are
+ * interested in, without building a json tree or an intermediate string of the whole payload. Frequent events like
+ * heartbeat acks cost nothing more than the resulting event object this way.
+ * <p>
+ * Fields may appear in any order, unknown fields are skipped. Malformed json results in an
+ * {@link IllegalArgumentException}.
+ */
+final class InboundWsEventParser {
+
+    private final ByteBuffer payload;
+    private final int limit;
+    private int pos;
+
+    //bounds of the most recently read key
+    private int keyStart;
+    private int keyEnd;
+
+    private InboundWsEventParser(final ByteBuffer payload) {
+        this.payload = payload;
+        this.pos = payload.position();
+        this.limit = payload.limit();
+    }
+
+    static InboundWsEvent parse(final ByteBuffer payload) {
+        return new InboundWsEventParser(payload).parseEvent();
+    }
+
+    // ################################################################################
+    // #                                Events
+    // ################################################################################
+
+    private InboundWsEvent parseEvent() {
+        int opCode = -1;
+        int dStart = -1;
+        this.expect('{');
+        if (!this.consumeIf('}')) {
+            do {
+                this.readKey();
+                if (this.keyIs("op")) {
+                    opCode = (int) this.readLong();
+                } else if (this.keyIs("d")) {
+                    this.skipWhitespace();
+                    dStart = this.pos;
+                    this.skipValue();
+                } else {
+                    this.skipValue();
+                }
+            } while (this.consumeIf(','));
+            this.expect('}');
+        }
+        if (opCode < 0) {
+            throw this.malformed("missing op code");
+        }
+
+        //events that we do not parse any further carry their full payload
+        if (opCode == OpCode.OP_12 || opCode == OpCode.OP_14) {
+            return IgnoredWsEvent.builder()
+                    .opCode(opCode)
+                    .payload(this.decode(this.payload.position(), this.limit))
+                    .build();
+        }
+        if (opCode == OpCode.RESUMED) {
+            return ResumedWsEvent.builder()
+                    .build();
+        }
+        if (opCode == OpCode.CLIENT_DISCONNECT) {
+            return ClientDisconnectWsEvent.builder()
+                    .build();
+        }
+        if (opCode == OpCode.HEARTBEAT_ACK) {
+            final long nonce;
+            if (dStart < 0 || this.byteAt(dStart) == 'n') { //absent or null
+                nonce = 0;
+            } else {
+                this.pos = dStart;
+                nonce = this.readLong();
+            }
+            return HeartbeatAckWsEvent.builder()
+                    .nonce(nonce)
+                    .build();
+        }
+        if (opCode != OpCode.HELLO && opCode != OpCode.READY && opCode != OpCode.SESSION_DESCRIPTION
+                && opCode != OpCode.SPEAKING && opCode != OpCode.WEBSOCKET_CLOSE) {
+            return UnknownWsEvent.builder()
+                    .payload(this.decode(this.payload.position(), this.limit))
+                    .opCode(opCode)
+                    .build();
+        }
+
+        if (dStart < 0) {
+            throw this.malformed("missing data of op " + opCode);
+        }
+        this.pos = dStart;
+        switch (opCode) {
+            case OpCode.HELLO:
+                return this.parseHello();
+            case OpCode.READY:
+                return this.parseReady();
+            case OpCode.SESSION_DESCRIPTION:
+                return this.parseSessionDescription();
+            case OpCode.SPEAKING:
+                return this.parseSpeaking();
+            default:
+                return this.parseWebSocketClosed();
+        }
+    }
+
+    private InboundWsEvent parseHello() {
+        long heartbeatInterval = -1;
+        this.expect('{');
+        if (!this.consumeIf('}')) {
+            do {
+                this.readKey();
+                if (this.keyIs("heartbeat_interval")) {
+                    heartbeatInterval = this.readLong();
+                } else {
+                    this.skipValue();
+                }
+            } while (this.consumeIf(','));
+        }
+        return HelloWsEvent.builder()
+                .heartbeatIntervalMillis((int) this.required(heartbeatInterval, "heartbeat_interval"))
+                .build();
+    }
+
+    private InboundWsEvent parseReady() {
+        long ssrc = -1;
+        long port = -1;
+        String ip = null;
+        final List<EncryptionMode> modes = new ArrayList<>();
+        this.expect('{');
+        if (!this.consumeIf('}')) {
+            do {
+                this.readKey();
+                if (this.keyIs("ssrc")) {
+                    ssrc = this.readLong();
+                } else if (this.keyIs("ip")) {
+                    ip = this.readString();
+                } else if (this.keyIs("port")) {
+                    port = this.readLong();
+                } else if (this.keyIs("modes")) {
+                    this.expect('[');
+                    if (!this.consumeIf(']')) {
+                        do {
+                            EncryptionMode.parse(this.readString()).ifPresent(modes::add);
+                        } while (this.consumeIf(','));
+                        this.expect(']');
+                    }
+                } else {
+                    this.skipValue();
+                }
+            } while (this.consumeIf(','));
+        }
+        return ReadyWsEvent.builder()
+                .ssrc((int) this.required(ssrc, "ssrc"))
+                .ip(this.required(ip, "ip"))
+                .port((int) this.required(port, "port"))
+                .addAllEncryptionModes(modes)
+                .build();
+    }
+
+    private InboundWsEvent parseSessionDescription() {
+        String mode = null;
+        byte[] secretKey = null;
+        this.expect('{');
+        if (!this.consumeIf('}')) {
+            do {
+                this.readKey();
+                if (this.keyIs("mode")) {
+                    mode = this.readString();
+                } else if (this.keyIs("secret_key")) {
+                    secretKey = new byte[AudioConnection.DISCORD_SECRET_KEY_LENGTH];
+                    int i = 0;
+                    this.expect('[');
+                    if (!this.consumeIf(']')) {
+                        do {
+                            if (i >= secretKey.length) {
+                                throw this.malformed("secret key is longer than " + secretKey.length + " bytes");
+                            }
+                            secretKey[i++] = (byte) this.readLong();
+                        } while (this.consumeIf(','));
+                        this.expect(']');
+                    }
+                } else {
+                    this.skipValue();
+                }
+            } while (this.consumeIf(','));
+        }
+        final Optional<EncryptionMode> encryptionMode = EncryptionMode.parse(this.required(mode, "mode"));
+        if (!encryptionMode.isPresent()) {
+            throw new RuntimeException("No / unknown encryption mode: " + mode);
+        }
+        return SessionDescriptionWsEvent.builder()
+                .encryptionMode(encryptionMode.get())
+                .secretKey(this.required(secretKey, "secret_key"))
+                .build();
+    }
+
+    private InboundWsEvent parseSpeaking() {
+        long speaking = -1;
+        this.expect('{');
+        if (!this.consumeIf('}')) {
+            do {
+                this.readKey();
+                if (this.keyIs("speaking")) {
+                    speaking = this.readLong();
+                } else {
+                    this.skipValue();
+                }
+            } while (this.consumeIf(','));
+        }
+        return SpeakingWsEvent.builder()
+                .speakingMask((int) this.required(speaking, "speaking"))
+                .build();
+    }
+
+    private InboundWsEvent parseWebSocketClosed() {
+        long code = -1;
+        String reason = null;
+        this.expect('{');
+        if (!this.consumeIf('}')) {
+            do {
+                this.readKey();
+                if (this.keyIs("code")) {
+                    code = this.readLong();
+                } else if (this.keyIs("reason")) {
+                    reason = this.readString();
+                } else {
+                    this.skipValue();
+                }
+            } while (this.consumeIf(','));
+        }
+        return WebSocketClosedWsEvent.builder()
+                .code((int) this.required(code, "code"))
+                .reason(this.required(reason, "reason"))
+                .build();
+    }
+
+    // ################################################################################
+    // #                                Tokens
+    // ################################################################################
+
+    private void readKey() {
+        this.expect('"');
+        this.keyStart = this.pos;
+        this.skipStringRemainder();
+        this.keyEnd = this.pos - 1;
+        this.expect(':');
+    }
+
+    //keys we look for are plain ascii, so comparing them byte by byte is fine
+    private boolean keyIs(final String name) {
+        if (this.keyEnd - this.keyStart != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (this.byteAt(this.keyStart + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long readLong() {
+        this.skipWhitespace();
+        final int start = this.pos;
+        boolean negative = false;
+        if (this.pos < this.limit && this.byteAt(this.pos) == '-') {
+            negative = true;
+            this.pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (this.pos < this.limit && isDigit(this.byteAt(this.pos))) {
+            value = value * 10 + (this.byteAt(this.pos) - '0');
+            this.pos++;
+            digits++;
+        }
+        if (digits == 0) {
+            throw this.malformed("expected a number");
+        }
+        //fractions and exponents are rare enough to not bother parsing them by hand
+        if (this.pos < this.limit && isNumberContinuation(this.byteAt(this.pos))) {
+            while (this.pos < this.limit && (isDigit(this.byteAt(this.pos)) || isNumberContinuation(this.byteAt(this.pos)))) {
+                this.pos++;
+            }
+            try {
+                return (long) Double.parseDouble(this.decode(start, this.pos));
+            } catch (final NumberFormatException e) {
+                throw this.malformed("expected a number");
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    private String readString() {
+        this.expect('"');
+        final int start = this.pos;
+        final boolean escaped = this.skipStringRemainder();
+        final String raw = this.decode(start, this.pos - 1);
+        return escaped ? this.unescape(raw) : raw;
+    }
+
+    /**
+     * Moves the position past the closing quote of the string that the position is in.
+     *
+     * @return true if the string contains escape sequences
+     */
+    private boolean skipStringRemainder() {
+        boolean escaped = false;
+        while (this.pos < this.limit) {
+            final byte b = this.byteAt(this.pos++);
+            if (b == '\\') {
+                escaped = true;
+                this.pos++;
+            } else if (b == '"') {
+                return escaped;
+            }
+        }
+        throw this.malformed("unterminated string");
+    }
+
+    private void skipValue() {
+        this.skipWhitespace();
+        if (this.pos >= this.limit) {
+            throw this.malformed("expected a value");
+        }
+        final byte first = this.byteAt(this.pos);
+        if (first == '"') {
+            this.pos++;
+            this.skipStringRemainder();
+        } else if (first == '{' || first == '[') {
+            int depth = 0;
+            while (this.pos < this.limit) {
+                final byte b = this.byteAt(this.pos++);
+                if (b == '"') {
+                    this.skipStringRemainder();
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return;
+                    }
+                }
+            }
+            throw this.malformed("unterminated " + (first == '{' ? "object" : "array"));
+        } else { //numbers, true, false, null
+            final int start = this.pos;
+            while (this.pos < this.limit) {
+                final byte b = this.byteAt(this.pos);
+                if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+                    break;
+                }
+                this.pos++;
+            }
+            if (this.pos == start) {
+                throw this.malformed("expected a value");
+            }
+        }
+    }
+
+    private void expect(final char c) {
+        if (!this.consumeIf(c)) {
+            throw this.malformed("expected '" + c + "'");
+        }
+    }
+
+    private boolean consumeIf(final char c) {
+        this.skipWhitespace();
+        if (this.pos < this.limit && this.byteAt(this.pos) == c) {
+            this.pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.limit && isWhitespace(this.byteAt(this.pos))) {
+            this.pos++;
+        }
+    }
+
+    // ################################################################################
+    // #                                Helpers
+    // ################################################################################
+
+    private byte byteAt(final int index) {
+        return this.payload.get(index);
+    }
+
+    private String decode(final int start, final int end) {
+        if (this.payload.hasArray()) {
+            return new String(this.payload.array(), this.payload.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = this.byteAt(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String unescape(final String raw) {
+        final StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            final char c = raw.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            final char escape = raw.charAt(++i);
+            switch (escape) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= raw.length()) {
+                        throw this.malformed("truncated unicode escape");
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                    } catch (final NumberFormatException e) {
+                        throw this.malformed("invalid unicode escape");
+                    }
+                    i += 4;
+                    break;
+                default: // " \ /
+                    sb.append(escape);
+            }
+        }
+        return sb.toString();
+    }
+
+    private long required(final long value, final String field) {
+        if (value < 0) {
+            throw this.malformed("missing or negative " + field);
+        }
+        return value;
+    }
+
+    private <T> T required(@Nullable final T value, final String field) {
+        if (value == null) {
+            throw this.malformed("missing " + field);
+        }
+        return value;
+    }
+
+    private IllegalArgumentException malformed(final String problem) {
+        return new IllegalArgumentException("Malformed voice websocket payload at position "
+                + (this.pos - this.payload.position()) + ": " + problem);
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isNumberContinuation(final byte b) {
+        return b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-';
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
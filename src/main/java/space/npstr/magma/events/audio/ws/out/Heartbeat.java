@@ -17,9 +17,13 @@
 package space.npstr.magma.events.audio.ws.out;
 
 import org.immutables.value.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import space.npstr.magma.events.audio.ws.OpCode;
 import space.npstr.magma.immutables.ImmutableWsEvent;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Created by napster on 21.04.18.
  */
@@ -27,7 +31,9 @@ import space.npstr.magma.immutables.ImmutableWsEvent;
 @ImmutableWsEvent
 public abstract class Heartbeat implements OutboundWsEvent {
 
-    public abstract int getNonce();
+    private static final MessageTemplate TEMPLATE = new MessageTemplate("{\"op\":" + OpCode.HEARTBEAT + ",\"d\":", "}");
+
+    public abstract long getNonce();
 
     @Override
     public int getOpCode() {
@@ -35,7 +41,26 @@ public abstract class Heartbeat implements OutboundWsEvent {
     }
 
     @Override
-    public Integer getData() {
+    public Long getData() {
         return this.getNonce();
     }
+
+    @Override
+    public String asMessage() {
+        return new String(this.serialized(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The same heartbeat is sent to many sessions at once by the {@link space.npstr.magma.connections.HeartbeatScheduler},
+     * so we serialize it only once, and let all of the sessions send the same bytes.
+     */
+    @Override
+    public DataBuffer writeMessage(final DataBufferFactory bufferFactory) {
+        return bufferFactory.wrap(this.serialized());
+    }
+
+    @Value.Lazy
+    protected byte[] serialized() {
+        return TEMPLATE.toBytes(this.getNonce());
+    }
 }
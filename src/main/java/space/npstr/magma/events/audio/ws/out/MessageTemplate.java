@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.events.audio.ws.out;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A precompiled json message with a single number field, for outbound events that are sent all the time and only
+ * differ in that number. The constant parts are encoded once, and each message is written straight into a buffer of
+ * the websocket session.
+ */
+public final class MessageTemplate {
+
+    //the longest a long can get in decimal, including its sign
+    private static final int MAX_LONG_LENGTH = 20;
+
+    private final byte[] prefix;
+    private final byte[] suffix;
+
+    /**
+     * @param prefix
+     *         the message up until the number
+     * @param suffix
+     *         the message following the number
+     */
+    public MessageTemplate(final String prefix, final String suffix) {
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        this.suffix = suffix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the message with the number filled in, written into a buffer of the factory
+     */
+    public DataBuffer write(final DataBufferFactory bufferFactory, final long value) {
+        final DataBuffer buffer = bufferFactory.allocateBuffer(this.prefix.length + MAX_LONG_LENGTH + this.suffix.length);
+        buffer.write(this.prefix);
+        writeDecimal(buffer, value);
+        buffer.write(this.suffix);
+        return buffer;
+    }
+
+    /**
+     * @return the message with the number filled in
+     */
+    public byte[] toBytes(final long value) {
+        final byte[] digits = Long.toString(value).getBytes(StandardCharsets.UTF_8);
+        final byte[] result = new byte[this.prefix.length + digits.length + this.suffix.length];
+        System.arraycopy(this.prefix, 0, result, 0, this.prefix.length);
+        System.arraycopy(digits, 0, result, this.prefix.length, digits.length);
+        System.arraycopy(this.suffix, 0, result, this.prefix.length + digits.length, this.suffix.length);
+        return result;
+    }
+
+    private static void writeDecimal(final DataBuffer buffer, final long value) {
+        if (value == Long.MIN_VALUE) { //can not be negated
+            buffer.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            buffer.write((byte) '-');
+            remaining = -remaining;
+        }
+        long divisor = 1;
+        while (remaining / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            buffer.write((byte) ('0' + remaining / divisor));
+            remaining %= divisor;
+            divisor /= 10;
+        }
+    }
+}
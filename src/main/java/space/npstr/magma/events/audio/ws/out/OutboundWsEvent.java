@@ -17,9 +17,13 @@
 package space.npstr.magma.events.audio.ws.out;
 
 import org.json.JSONObject;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import space.npstr.magma.events.audio.ws.WsEvent;
 import space.npstr.magma.events.audio.ws.in.InboundWsEvent;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Created by napster on 21.04.18.
  * <p>
@@ -43,4 +47,15 @@ public interface OutboundWsEvent extends WsEvent {
                 .put("d", this.getData())
                 .toString();
     }
+
+    /**
+     * Write the message that can be sent to Discord over the websocket into a buffer. Events that are sent often
+     * override this to skip building the intermediate json objects and string.
+     *
+     * @param bufferFactory
+     *         buffer factory of the websocket session that the message will be sent over
+     */
+    default DataBuffer writeMessage(final DataBufferFactory bufferFactory) {
+        return bufferFactory.wrap(this.asMessage().getBytes(StandardCharsets.UTF_8));
+    }
 }
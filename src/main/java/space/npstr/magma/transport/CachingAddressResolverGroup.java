@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.InetNameResolver;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lets Netty resolve the voice endpoints through our {@link EndpointResolver}, instead of blocking its event loops on
+ * the jdk's resolver.
+ */
+class CachingAddressResolverGroup extends AddressResolverGroup<InetSocketAddress> {
+
+    private final EndpointResolver endpointResolver;
+
+    CachingAddressResolverGroup(final EndpointResolver endpointResolver) {
+        this.endpointResolver = endpointResolver;
+    }
+
+    @Override
+    protected AddressResolver<InetSocketAddress> newResolver(final EventExecutor executor) {
+        return new CachingNameResolver(executor, this.endpointResolver).asAddressResolver();
+    }
+
+    private static class CachingNameResolver extends InetNameResolver {
+
+        private final EndpointResolver endpointResolver;
+
+        private CachingNameResolver(final EventExecutor executor, final EndpointResolver endpointResolver) {
+            super(executor);
+            this.endpointResolver = endpointResolver;
+        }
+
+        @Override
+        protected void doResolve(final String inetHost, final Promise<InetAddress> promise) {
+            this.endpointResolver.resolve(inetHost)
+                    .subscribe(promise::trySuccess, promise::tryFailure);
+        }
+
+        @Override
+        protected void doResolveAll(final String inetHost, final Promise<List<InetAddress>> promise) {
+            this.endpointResolver.resolve(inetHost)
+                    .subscribe(address -> promise.trySuccess(Collections.singletonList(address)), promise::tryFailure);
+        }
+    }
+}
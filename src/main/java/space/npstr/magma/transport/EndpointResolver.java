@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the hosts of voice endpoints off the I/O threads, and caches the results for a while. All connections of all
+ * transports share {@link #SHARED}, so thousands of them reconnecting to the same handful of voice servers result in a
+ * single lookup per server. Concurrent requests for a host that is being looked up wait for that lookup. Failed lookups are
+ * not cached.
+ */
+class EndpointResolver {
+
+    //same as the default of the jdk's own cache
+    static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+
+    static final EndpointResolver SHARED = new EndpointResolver();
+
+    private final long ttlMillis;
+    private final Lookup lookup;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    EndpointResolver() {
+        this(DEFAULT_TTL, InetAddress::getByName);
+    }
+
+    EndpointResolver(final Duration ttl, final Lookup lookup) {
+        this.ttlMillis = ttl.toMillis();
+        this.lookup = lookup;
+    }
+
+    /**
+     * @return a mono emitting the address of the host, looking it up when subscribed if it is not cached
+     */
+    Mono<InetAddress> resolve(final String host) {
+        return Mono.defer(() -> {
+            final long now = System.currentTimeMillis();
+            return this.cache.compute(host, (__, cached) -> cached != null && cached.expiresAt > now
+                    ? cached
+                    : this.lookUp(host, now)
+            ).address;
+        });
+    }
+
+    private Entry lookUp(final String host, final long now) {
+        final Entry entry = new Entry(now + this.ttlMillis);
+        entry.address = Mono.fromCallable(() -> this.lookup.lookUp(host))
+                .subscribeOn(Schedulers.elastic()) //lookups block
+                .doOnError(__ -> this.cache.remove(host, entry))
+                .cache();
+        return entry;
+    }
+
+    @FunctionalInterface
+    interface Lookup {
+        InetAddress lookUp(String host) throws UnknownHostException;
+    }
+
+    private static class Entry {
+        private final long expiresAt;
+        private Mono<InetAddress> address = Mono.empty();
+
+        private Entry(final long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * Delegates everything to the wrapped engine, and reports its initial handshake to the counter once it finishes. The
+ * handshake resumed a cached session if that session was created before the handshake started.
+ */
+class HandshakeCountingSslEngine extends SSLEngine {
+
+    private final SSLEngine delegate;
+    private final TlsHandshakeCounter handshakeCounter;
+    private volatile long handshakeStartedAt = -1;
+    //tls 1.3 reports a finished handshake again for every session ticket received afterwards
+    private volatile boolean handshakeCounted = false;
+
+    HandshakeCountingSslEngine(final SSLEngine delegate, final TlsHandshakeCounter handshakeCounter) {
+        super(delegate.getPeerHost(), delegate.getPeerPort());
+        this.delegate = delegate;
+        this.handshakeCounter = handshakeCounter;
+    }
+
+    // ################################################################################
+    // #                                Counting
+    // ################################################################################
+
+    @Override
+    public SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length, final ByteBuffer dst)
+            throws SSLException {
+        this.markHandshakeStart();
+        return this.count(this.delegate.wrap(srcs, offset, length, dst));
+    }
+
+    @Override
+    public SSLEngineResult unwrap(final ByteBuffer src, final ByteBuffer[] dsts, final int offset, final int length)
+            throws SSLException {
+        this.markHandshakeStart();
+        return this.count(this.delegate.unwrap(src, dsts, offset, length));
+    }
+
+    @Override
+    public void beginHandshake() throws SSLException {
+        this.markHandshakeStart();
+        this.delegate.beginHandshake();
+    }
+
+    private void markHandshakeStart() {
+        if (this.handshakeStartedAt < 0) {
+            this.handshakeStartedAt = System.currentTimeMillis();
+        }
+    }
+
+    private SSLEngineResult count(final SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !this.handshakeCounted) {
+            this.handshakeCounted = true;
+            final boolean resumed = this.delegate.getSession().getCreationTime() < this.handshakeStartedAt;
+            this.handshakeCounter.countHandshake(resumed);
+        }
+        return result;
+    }
+
+    // ################################################################################
+    // #                                Delegation
+    // ################################################################################
+
+    @Override
+    public Runnable getDelegatedTask() {
+        return this.delegate.getDelegatedTask();
+    }
+
+    @Override
+    public void closeInbound() throws SSLException {
+        this.delegate.closeInbound();
+    }
+
+    @Override
+    public boolean isInboundDone() {
+        return this.delegate.isInboundDone();
+    }
+
+    @Override
+    public void closeOutbound() {
+        this.delegate.closeOutbound();
+    }
+
+    @Override
+    public boolean isOutboundDone() {
+        return this.delegate.isOutboundDone();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return this.delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public String[] getEnabledCipherSuites() {
+        return this.delegate.getEnabledCipherSuites();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(final String[] suites) {
+        this.delegate.setEnabledCipherSuites(suites);
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return this.delegate.getSupportedProtocols();
+    }
+
+    @Override
+    public String[] getEnabledProtocols() {
+        return this.delegate.getEnabledProtocols();
+    }
+
+    @Override
+    public void setEnabledProtocols(final String[] protocols) {
+        this.delegate.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public SSLSession getSession() {
+        return this.delegate.getSession();
+    }
+
+    @Override
+    public SSLSession getHandshakeSession() {
+        return this.delegate.getHandshakeSession();
+    }
+
+    @Override
+    public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+        return this.delegate.getHandshakeStatus();
+    }
+
+    @Override
+    public void setUseClientMode(final boolean mode) {
+        this.delegate.setUseClientMode(mode);
+    }
+
+    @Override
+    public boolean getUseClientMode() {
+        return this.delegate.getUseClientMode();
+    }
+
+    @Override
+    public void setNeedClientAuth(final boolean need) {
+        this.delegate.setNeedClientAuth(need);
+    }
+
+    @Override
+    public boolean getNeedClientAuth() {
+        return this.delegate.getNeedClientAuth();
+    }
+
+    @Override
+    public void setWantClientAuth(final boolean want) {
+        this.delegate.setWantClientAuth(want);
+    }
+
+    @Override
+    public boolean getWantClientAuth() {
+        return this.delegate.getWantClientAuth();
+    }
+
+    @Override
+    public void setEnableSessionCreation(final boolean flag) {
+        this.delegate.setEnableSessionCreation(flag);
+    }
+
+    @Override
+    public boolean getEnableSessionCreation() {
+        return this.delegate.getEnableSessionCreation();
+    }
+
+    @Override
+    public SSLParameters getSSLParameters() {
+        return this.delegate.getSSLParameters();
+    }
+
+    @Override
+    public void setSSLParameters(final SSLParameters params) {
+        this.delegate.setSSLParameters(params);
+    }
+
+    @Override
+    public String getApplicationProtocol() {
+        return this.delegate.getApplicationProtocol();
+    }
+
+    @Override
+    public String getHandshakeApplicationProtocol() {
+        return this.delegate.getHandshakeApplicationProtocol();
+    }
+
+    @Override
+    public void setHandshakeApplicationProtocolSelector(final BiFunction<SSLEngine, List<String>, String> selector) {
+        this.delegate.setHandshakeApplicationProtocolSelector(selector);
+    }
+
+    @Override
+    public BiFunction<SSLEngine, List<String>, String> getHandshakeApplicationProtocolSelector() {
+        return this.delegate.getHandshakeApplicationProtocolSelector();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import io.undertow.protocols.ssl.UndertowXnioSsl;
+import org.xnio.ChannelListener;
+import org.xnio.IoFuture;
+import org.xnio.OptionMap;
+import org.xnio.Xnio;
+import org.xnio.XnioIoThread;
+import org.xnio.XnioWorker;
+import org.xnio.channels.BoundChannel;
+import org.xnio.ssl.SslConnection;
+
+import javax.net.ssl.SSLContext;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * For connections to an address that has been resolved already, and is handed to Undertow as an ip literal. Puts the
+ * original host back onto the destination, so the TLS engine is created for it: that is where SNI, the certificate
+ * checks and session resumption take the peer host from. One of these per connection.
+ */
+class PeerHostXnioSsl extends UndertowXnioSsl {
+
+    private final String peerHost;
+
+    PeerHostXnioSsl(final Xnio xnio, final SSLContext sslContext, final String peerHost) {
+        super(xnio, OptionMap.EMPTY, sslContext);
+        this.peerHost = peerHost;
+    }
+
+    @Override
+    public IoFuture<SslConnection> openSslConnection(final XnioWorker worker, final InetSocketAddress bindAddress,
+                                                     final InetSocketAddress destination,
+                                                     final ChannelListener<? super SslConnection> openListener,
+                                                     final ChannelListener<? super BoundChannel> bindListener,
+                                                     final OptionMap optionMap) {
+        return super.openSslConnection(worker, bindAddress, this.withPeerHost(destination), openListener,
+                bindListener, optionMap);
+    }
+
+    @Override
+    public IoFuture<SslConnection> openSslConnection(final XnioIoThread ioThread, final InetSocketAddress bindAddress,
+                                                     final InetSocketAddress destination,
+                                                     final ChannelListener<? super SslConnection> openListener,
+                                                     final ChannelListener<? super BoundChannel> bindListener,
+                                                     final OptionMap optionMap) {
+        return super.openSslConnection(ioThread, bindAddress, this.withPeerHost(destination), openListener,
+                bindListener, optionMap);
+    }
+
+    //same address, no lookup involved
+    private InetSocketAddress withPeerHost(final InetSocketAddress destination) {
+        try {
+            final InetAddress address = InetAddress.getByAddress(this.peerHost, destination.getAddress().getAddress());
+            return new InetSocketAddress(address, destination.getPort());
+        } catch (final UnknownHostException e) {
+            throw new IllegalArgumentException("Destination " + destination + " is not a resolved address", e);
+        }
+    }
+}
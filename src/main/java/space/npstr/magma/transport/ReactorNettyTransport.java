@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.JdkSslContext;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.resources.LoopResources;
+import space.npstr.magma.connections.hax.ClosingReactorNettyWebSocketClient;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+
+/**
+ * Connects the voice websockets with Reactor Netty, using pooled direct buffers. The native epoll transport is used
+ * when it is available, so add netty-transport-native-epoll to your runtime classpath on Linux.
+ * <p>
+ * Reactor Netty is an optional dependency of Magma, add it yourself to use this transport. Hand it the loop resources
+ * that your bot already runs on to avoid running a second set of I/O threads.
+ */
+public class ReactorNettyTransport implements WebSocketTransport {
+
+    private final WebSocketClient webSocketClient;
+    private final TlsHandshakeCounter tlsHandshakeCounter = new TlsHandshakeCounter();
+    //loop resources that we created ourselves, and are responsible for
+    @Nullable
+    private final LoopResources ownLoopResources;
+
+    /**
+     * Run on a new set of event loops.
+     */
+    public ReactorNettyTransport() {
+        this(LoopResources.create("magma-ws"), true);
+    }
+
+    /**
+     * @param loopResources
+     *         event loops to run on, they are not disposed when Magma shuts down
+     */
+    public ReactorNettyTransport(final LoopResources loopResources) {
+        this(loopResources, false);
+    }
+
+    private ReactorNettyTransport(final LoopResources loopResources, final boolean ownsLoopResources) {
+        this.ownLoopResources = ownsLoopResources ? loopResources : null;
+        this.webSocketClient = new ClosingReactorNettyWebSocketClient(options -> options
+                .loopResources(loopResources)
+                .preferNative(true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .resolver(new CachingAddressResolverGroup(EndpointResolver.SHARED))
+                .sslContext(new JdkSslContext(TlsSessions.createClientContext(this.tlsHandshakeCounter), true,
+                        ClientAuth.NONE)));
+    }
+
+    @Override
+    public Mono<Void> execute(final URI url, final WebSocketHandler handler) {
+        return this.webSocketClient.execute(url, handler);
+    }
+
+    /**
+     * @return counts of the full and resumed TLS handshakes of the voice websockets
+     */
+    public TlsHandshakeCounter getTlsHandshakeCounter() {
+        return this.tlsHandshakeCounter;
+    }
+
+    @Override
+    public void shutdown() {
+        if (this.ownLoopResources != null) {
+            this.ownLoopResources.dispose();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS handshakes of the voice websockets of a transport, telling apart full handshakes from resumed
+ * sessions, which are much cheaper. Reconnects and resumes to a voice server we have recently been connected to are
+ * expected to resume their TLS session.
+ */
+public class TlsHandshakeCounter {
+
+    private final AtomicLong fullHandshakes = new AtomicLong(0);
+    private final AtomicLong resumedHandshakes = new AtomicLong(0);
+
+    /**
+     * @return how many handshakes negotiated a new TLS session
+     */
+    public long getFullHandshakes() {
+        return this.fullHandshakes.get();
+    }
+
+    /**
+     * @return how many handshakes resumed a cached TLS session
+     */
+    public long getResumedHandshakes() {
+        return this.resumedHandshakes.get();
+    }
+
+    void countHandshake(final boolean resumed) {
+        if (resumed) {
+            this.resumedHandshakes.incrementAndGet();
+        } else {
+            this.fullHandshakes.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the client side ssl contexts of our transports. Their session cache is sized for lots of voice servers, and
+ * is keyed by the host and port of the voice endpoint, so reconnects to the same voice server resume their TLS session
+ * instead of doing a full handshake. All handshakes are counted.
+ */
+final class TlsSessions {
+
+    //there are a few thousand voice servers at most
+    private static final int SESSION_CACHE_SIZE = 10_000;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(12);
+
+    private TlsSessions() {
+    }
+
+    static SSLContext createClientContext(final TlsHandshakeCounter handshakeCounter) {
+        final SSLContext delegate;
+        try {
+            delegate = SSLContext.getInstance("TLS");
+            delegate.init(null, null, null);
+        } catch (final NoSuchAlgorithmException | KeyManagementException e) {
+            throw new RuntimeException("Failed to set up ssl context", e);
+        }
+        final SSLSessionContext sessionCache = delegate.getClientSessionContext();
+        sessionCache.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionCache.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+
+        return new CountingSslContext(new CountingSslContextSpi(delegate, handshakeCounter), delegate);
+    }
+
+    private static class CountingSslContext extends SSLContext {
+        private CountingSslContext(final SSLContextSpi spi, final SSLContext delegate) {
+            super(spi, delegate.getProvider(), delegate.getProtocol());
+        }
+    }
+
+    private static class CountingSslContextSpi extends SSLContextSpi {
+        private final SSLContext delegate;
+        private final TlsHandshakeCounter handshakeCounter;
+
+        private CountingSslContextSpi(final SSLContext delegate, final TlsHandshakeCounter handshakeCounter) {
+            this.delegate = delegate;
+            this.handshakeCounter = handshakeCounter;
+        }
+
+        @Override
+        protected void engineInit(final javax.net.ssl.KeyManager[] km, final javax.net.ssl.TrustManager[] tm,
+                                  final SecureRandom sr) {
+            //already initialized
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return this.delegate.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return this.delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new HandshakeCountingSslEngine(this.delegate.createSSLEngine(), this.handshakeCounter);
+        }
+
+        //the session cache only works for engines that know their peer
+        @Override
+        protected SSLEngine engineCreateSSLEngine(final String host, final int port) {
+            return new HandshakeCountingSslEngine(this.delegate.createSSLEngine(host, port), this.handshakeCounter);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return this.delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return this.delegate.getClientSessionContext();
+        }
+    }
+}
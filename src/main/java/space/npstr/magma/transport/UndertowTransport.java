@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.xnio.OptionMap;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+import reactor.core.publisher.Mono;
+import space.npstr.magma.connections.hax.ClosingUndertowWebSocketClient;
+
+import javax.net.ssl.SSLContext;
+import java.net.URI;
+
+/**
+ * Connects the voice websockets with Undertow, running on its own XNIO worker. This is the default transport.
+ */
+public class UndertowTransport implements WebSocketTransport {
+
+    private final XnioWorker xnioWorker;
+    private final ClosingUndertowWebSocketClient webSocketClient;
+    private final TlsHandshakeCounter tlsHandshakeCounter = new TlsHandshakeCounter();
+    private final SSLContext sslContext;
+
+    public UndertowTransport() {
+        this(OptionMap.builder().getMap());
+    }
+
+    /**
+     * @param xnioOptions
+     *         options to build the {@link XnioWorker} that will be used for the websocket connections
+     */
+    public UndertowTransport(final OptionMap xnioOptions) {
+        try {
+            this.xnioWorker = Xnio.getInstance().createWorker(xnioOptions);
+            this.sslContext = TlsSessions.createClientContext(this.tlsHandshakeCounter);
+            this.webSocketClient = new ClosingUndertowWebSocketClient(this.xnioWorker, builder -> {});
+        } catch (final Exception e) {
+            throw new RuntimeException("Failed to set up websocket client", e);
+        }
+    }
+
+    //Undertow would resolve the host itself, blocking, right before connecting. Instead, it connects to the address
+    //looked up through our resolver, while the host is kept for the Host header and TLS.
+    @Override
+    public Mono<Void> execute(final URI url, final WebSocketHandler handler) {
+        return EndpointResolver.SHARED.resolve(url.getHost())
+                .flatMap(address -> this.webSocketClient.execute(url, address,
+                        new PeerHostXnioSsl(Xnio.getInstance(), this.sslContext, url.getHost()), handler));
+    }
+
+    /**
+     * @return counts of the full and resumed TLS handshakes of the voice websockets
+     */
+    public TlsHandshakeCounter getTlsHandshakeCounter() {
+        return this.tlsHandshakeCounter;
+    }
+
+    @Override
+    public void shutdown() {
+        this.xnioWorker.shutdown();
+    }
+}
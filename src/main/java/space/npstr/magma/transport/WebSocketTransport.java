@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package space.npstr.magma.transport;
+
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import reactor.core.publisher.Mono;
+import space.npstr.magma.events.audio.ws.OpCode;
+
+import java.net.URI;
+
+/**
+ * The websocket client implementation that the voice websockets are connected with. Magma uses the
+ * {@link UndertowTransport} unless told otherwise.
+ * <p>
+ * Implementations have to pass close frames received from Discord on to the handler, as a text message of our custom
+ * op {@link OpCode#WEBSOCKET_CLOSE} carrying the close code and reason, before completing the inbound messages.
+ * Magma needs to know the close codes to decide on how to recover from a closed connection.
+ */
+public interface WebSocketTransport {
+
+    /**
+     * @param url
+     *         the websocket endpoint to connect to
+     * @param handler
+     *         will be handed the session once it has been established
+     *
+     * @return a mono that connects when subscribed, and completes once the session is closed
+     */
+    Mono<Void> execute(URI url, WebSocketHandler handler);
+
+    /**
+     * Release all resources held by this transport. Resources that were handed to the transport by user code, like
+     * event loops, are left alone.
+     */
+    void shutdown();
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BroadcastGroupTest {
+
+    @Test
+    public void pullsEachFrameOnce() {
+        final CountingOpusSource source = new CountingOpusSource();
+        final BroadcastGroup group = new BroadcastGroup(source);
+        final AudioSendHandler first = group.createSendHandler();
+        final AudioSendHandler second = group.createSendHandler();
+
+        for (int i = 0; i < 3; i++) {
+            final byte[] frame = first.provide20MsAudio();
+            assertSame(frame, second.provide20MsAudio(), "Members were sent different frames");
+            assertArrayEquals(new byte[]{(byte) i}, frame, "Frames were sent out of order");
+        }
+        assertEquals(3, source.provided, "Pulled frames from the source more than once");
+    }
+
+    @Test
+    public void membersJoinWithTheLatestFrame() {
+        final CountingOpusSource source = new CountingOpusSource();
+        final BroadcastGroup group = new BroadcastGroup(source);
+        final AudioSendHandler early = group.createSendHandler();
+        early.provide20MsAudio();
+        early.provide20MsAudio();
+
+        final AudioSendHandler late = group.createSendHandler();
+        assertArrayEquals(new byte[]{1}, late.provide20MsAudio(), "Late member did not start with the latest frame");
+        assertSame(early.provide20MsAudio(), late.provide20MsAudio(), "Late member is not in lockstep");
+    }
+
+    @Test
+    public void laggingMembersSkipAhead() {
+        final CountingOpusSource source = new CountingOpusSource();
+        final BroadcastGroup group = new BroadcastGroup(source);
+        final AudioSendHandler fast = group.createSendHandler();
+        final AudioSendHandler slow = group.createSendHandler();
+        slow.canProvide(); //joins at the first frame
+
+        byte[] latest = null;
+        for (int i = 0; i < 100; i++) {
+            latest = fast.provide20MsAudio();
+        }
+        assertSame(latest, slow.provide20MsAudio(), "Lagging member did not skip ahead to the latest frame");
+    }
+
+    @Test
+    public void membersBehindAreNotHeldUpByProducing() throws Exception {
+        final BlockingOpusSource source = new BlockingOpusSource();
+        final BroadcastGroup group = new BroadcastGroup(source);
+        final AudioSendHandler fast = group.createSendHandler();
+        final AudioSendHandler slow = group.createSendHandler();
+        slow.canProvide(); //joins at the first frame
+        final byte[] first = fast.provide20MsAudio();
+
+        source.blocking = true;
+        final Thread producer = new Thread(fast::provide20MsAudio);
+        producer.start();
+        try {
+            assertTrue(source.entered.await(5, TimeUnit.SECONDS), "Fast member did not pull the next frame");
+            assertSame(first, assertTimeoutPreemptively(Duration.ofSeconds(5), slow::provide20MsAudio),
+                    "Member that is behind was held up by producing the next frame");
+        } finally {
+            source.release.countDown();
+            producer.join();
+        }
+    }
+
+    @Test
+    public void closedGroupProvidesNothing() {
+        final BroadcastGroup group = new BroadcastGroup(new CountingOpusSource());
+        final AudioSendHandler member = group.createSendHandler();
+        group.close();
+
+        assertFalse(member.canProvide(), "Closed group can provide");
+        assertNull(member.provide20MsAudio(), "Closed group provided audio");
+    }
+
+    //blocks pulling frames once told to, until released
+    private static class BlockingOpusSource extends CountingOpusSource {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean blocking = false;
+
+        @Override
+        public byte[] provide20MsAudio() {
+            if (this.blocking) {
+                this.entered.countDown();
+                try {
+                    this.release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.provide20MsAudio();
+        }
+    }
+
+    private static class CountingOpusSource implements AudioSendHandler {
+        private int provided = 0;
+
+        @Override
+        public boolean canProvide() {
+            return true;
+        }
+
+        @Override
+        public byte[] provide20MsAudio() {
+            return new byte[]{(byte) this.provided++};
+        }
+
+        @Override
+        public boolean isOpus() {
+            return true;
+        }
+    }
+}
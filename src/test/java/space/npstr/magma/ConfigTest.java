@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ConfigTest {
+
+    @Test
+    public void negativeMaxMissedHeartbeatAcks() {
+        final Executable ex = () -> MagmaConfig.builder()
+                .maxMissedHeartbeatAcks(-1)
+                .build();
+
+        assertThrows(IllegalArgumentException.class, ex, "Accepted negative max missed heartbeat acks");
+    }
+
+    @Test
+    public void zeroMaxConcurrentConnects() {
+        final Executable ex = () -> MagmaConfig.builder()
+                .maxConcurrentConnects(0)
+                .build();
+
+        assertThrows(IllegalArgumentException.class, ex, "Accepted zero max concurrent connects");
+    }
+
+    @Test
+    public void negativeSpeakingReleaseDelay() {
+        final Executable ex = () -> MagmaConfig.builder()
+                .speakingReleaseDelay(Duration.ofMillis(-1))
+                .build();
+
+        assertThrows(IllegalArgumentException.class, ex, "Accepted negative speaking release delay");
+    }
+
+    @Test
+    public void negativeHibernationDelay() {
+        final Executable ex = () -> MagmaConfig.builder()
+                .hibernationDelay(Duration.ofMillis(-1))
+                .build();
+
+        assertThrows(IllegalArgumentException.class, ex, "Accepted negative hibernation delay");
+    }
+
+    @Test
+    public void zeroLookAhead() {
+        final Executable ex = () -> MagmaConfig.builder()
+                .lookAhead(Duration.ZERO)
+                .build();
+
+        assertThrows(IllegalArgumentException.class, ex, "Accepted zero look ahead");
+    }
+
+    @Test
+    public void defaults() {
+        final Config config = MagmaConfig.builder().build();
+
+        assertEquals(3, config.getMaxMissedHeartbeatAcks(), "Unexpected default max missed heartbeat acks");
+        assertEquals(32, config.getMaxConcurrentConnects(), "Unexpected default max concurrent connects");
+        assertEquals(Duration.ofMillis(200), config.getSpeakingReleaseDelay(), "Unexpected default speaking release delay");
+        assertEquals(Duration.ofMinutes(5), config.getHibernationDelay(), "Unexpected default hibernation delay");
+        assertFalse(config.isPipelinedSending(), "Unexpected default pipelined sending");
+        assertEquals(Duration.ofMillis(60), config.getLookAhead(), "Unexpected default look ahead");
+        assertEquals(FrameDuration.MS_20, config.getFrameDuration(), "Unexpected default frame duration");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EventCoalescerTest {
+
+    @Test
+    public void dropsSupersededEvents() {
+        final EventCoalescer<String, String> coalescer = new EventCoalescer<>();
+        coalescer.offer("member", "first");
+        coalescer.offer("member", "second");
+        coalescer.offer("member", "third");
+
+        assertFalse(coalescer.poll("member", "first"), "Superseded event was not dropped");
+        assertFalse(coalescer.poll("member", "second"), "Superseded event was not dropped");
+        assertTrue(coalescer.poll("member", "third"), "Latest event was dropped");
+    }
+
+    @Test
+    public void keysAreIndependent() {
+        final EventCoalescer<String, String> coalescer = new EventCoalescer<>();
+        coalescer.offer("a", "first");
+        coalescer.offer("b", "second");
+
+        assertTrue(coalescer.poll("a", "first"), "Event was dropped due to an event of another key");
+        assertTrue(coalescer.poll("b", "second"), "Event was dropped due to an event of another key");
+    }
+
+    @Test
+    public void laterEventsAfterPollAreKept() {
+        final EventCoalescer<String, String> coalescer = new EventCoalescer<>();
+        coalescer.offer("member", "first");
+        assertTrue(coalescer.poll("member", "first"), "Latest event was dropped");
+
+        coalescer.offer("member", "second");
+        assertTrue(coalescer.poll("member", "second"), "Latest event was dropped");
+    }
+
+    @Test
+    public void equalEventsAreNotTheSame() {
+        final EventCoalescer<String, String> coalescer = new EventCoalescer<>();
+        final String first = new String("update");
+        final String second = new String("update");
+        coalescer.offer("member", first);
+        coalescer.offer("member", second);
+
+        assertFalse(coalescer.poll("member", first), "Older equal event was taken for the latest one");
+        assertTrue(coalescer.poll("member", second), "Latest event was dropped");
+    }
+
+    @Test
+    public void equalEventAfterCloseIsKept() {
+        //update, close, equal update: the member has to end up connected
+        final EventCoalescer<String, String> coalescer = new EventCoalescer<>();
+        final String update = new String("update");
+        final String sameUpdate = new String("update");
+        coalescer.offer("member", update);
+        coalescer.supersede("member");
+        coalescer.offer("member", sameUpdate);
+
+        assertFalse(coalescer.poll("member", update), "Update superseded by a close was not dropped");
+        assertTrue(coalescer.poll("member", sameUpdate), "Update after the close was dropped");
+    }
+
+    @Test
+    public void pendingUntilPolledOrSuperseded() {
+        final EventCoalescer<String, String> coalescer = new EventCoalescer<>();
+        assertFalse(coalescer.isPending("member"), "Nothing was offered");
+
+        coalescer.offer("member", "first");
+        assertTrue(coalescer.isPending("member"), "Offered event is not pending");
+        coalescer.poll("member", "first");
+        assertFalse(coalescer.isPending("member"), "Polled event is still pending");
+
+        coalescer.offer("member", "second");
+        coalescer.supersede("member");
+        assertFalse(coalescer.isPending("member"), "Superseded event is still pending");
+    }
+
+    @Test
+    public void supersedeByFilter() {
+        final EventCoalescer<String, String> coalescer = new EventCoalescer<>();
+        coalescer.offer("a", "first");
+        coalescer.offer("b", "second");
+        coalescer.supersede(key -> key.equals("a"));
+
+        assertFalse(coalescer.poll("a", "first"), "Superseded event was not dropped");
+        assertTrue(coalescer.poll("b", "second"), "Event not matching the filter was dropped");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MailboxTest {
+
+    @Test
+    public void processesInOrder() throws InterruptedException {
+        final int count = 1000;
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(count);
+        final Mailbox<Integer> mailbox = new Mailbox<>(message -> {
+            processed.add(message);
+            done.countDown();
+        });
+
+        for (int i = 0; i < count; i++) {
+            mailbox.post(i);
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS), "Not all messages were processed");
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) processed.get(i), "Messages were processed out of order");
+        }
+    }
+
+    @Test
+    public void neverProcessesConcurrently() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 1000;
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger overlaps = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(threads * perThread);
+        final Mailbox<Integer> mailbox = new Mailbox<>(message -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            running.decrementAndGet();
+            done.countDown();
+        });
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    mailbox.post(i);
+                }
+            }).start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS), "Not all messages were processed");
+        assertEquals(0, overlaps.get(), "Messages were processed concurrently");
+    }
+
+    @Test
+    public void survivesHandlerExceptions() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Mailbox<Integer> mailbox = new Mailbox<>(message -> {
+            if (message == 0) {
+                throw new IllegalStateException("boom");
+            }
+            done.countDown();
+        });
+
+        mailbox.post(0);
+        mailbox.post(1);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS), "Mailbox stopped processing after an exception");
+    }
+}
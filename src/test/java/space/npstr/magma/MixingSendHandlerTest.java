@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MixingSendHandlerTest {
+
+    @Test
+    public void singleSourceBypassesMixer() {
+        final ConstantSource music = new ConstantSource((short) 100);
+        final MixingSendHandler mixer = new MixingSendHandler();
+        mixer.addSource(music, 0);
+        mixer.addSource(new ConstantSource(null), 1);
+
+        assertSame(music.frame, mixer.provide20MsPcm(), "Frame of a single source was not passed on as it is");
+    }
+
+    @Test
+    public void mixesAndSaturates() {
+        final MixingSendHandler mixer = new MixingSendHandler();
+        mixer.addSource(new ConstantSource((short) 100), 0);
+        mixer.addSource(new ConstantSource((short) 200), 0);
+        assertEquals(300, mixer.provide20MsPcm().get(0), "Sources were not summed up");
+
+        mixer.addSource(new ConstantSource(Short.MAX_VALUE), 0);
+        assertEquals(Short.MAX_VALUE, mixer.provide20MsPcm().get(0), "Mix was not saturated");
+    }
+
+    @Test
+    public void ducksLowerPriorities() {
+        final ConstantSource music = new ConstantSource((short) 1000);
+        final MixingSendHandler mixer = new MixingSendHandler(0.5f);
+        mixer.addSource(music, 0);
+        mixer.addSource(new ConstantSource((short) 100), 1);
+        assertEquals(600, mixer.provide20MsPcm().get(0), "Lower priority source was not ducked");
+
+        mixer.removeSource(music);
+        assertEquals(100, mixer.provide20MsPcm().get(0), "Removed source is still mixed");
+    }
+
+    @Test
+    public void rejectsOpus() {
+        final MixingSendHandler mixer = new MixingSendHandler();
+        final Executable ex = () -> mixer.addSource(new AudioSendHandler() {
+            @Override
+            public boolean canProvide() {
+                return true;
+            }
+
+            @Override
+            public byte[] provide20MsAudio() {
+                return new byte[]{1};
+            }
+
+            @Override
+            public boolean isOpus() {
+                return true;
+            }
+        }, 0);
+
+        assertThrows(IllegalArgumentException.class, ex, "Accepted an opus source");
+        assertFalse(mixer.canProvide(), "Rejected source was added");
+    }
+
+    @Test
+    public void rejectsLongFrames() {
+        final MixingSendHandler mixer = new MixingSendHandler();
+        final Executable ex = () -> mixer.addSource(new FramedConstantSource(FrameDuration.MS_60), 0);
+
+        assertThrows(IllegalArgumentException.class, ex, "Accepted a source with 60ms frames");
+        assertFalse(mixer.canProvide(), "Rejected source was added");
+
+        mixer.addSource(new FramedConstantSource(FrameDuration.MS_20), 0);
+        assertTrue(mixer.canProvide(), "Source with 20ms frames was not added");
+    }
+
+    @Test
+    public void mixesBigEndianBytes() {
+        final MixingSendHandler mixer = new MixingSendHandler();
+        mixer.addSource(new ConstantBytes((byte) 0x01, (byte) 0x02), 0);
+        assertEquals(0x0102, mixer.provide20MsPcm().get(0), "Bytes of a single source were not read as big endian");
+
+        mixer.addSource(new ConstantSource((short) 1), 0);
+        assertEquals(0x0103, mixer.provide20MsPcm().get(0), "Bytes were not mixed as big endian samples");
+    }
+
+    private static class ConstantSource implements PcmSendHandler {
+        private final ShortBuffer frame;
+
+        private ConstantSource(final Short sample) {
+            if (sample == null) {
+                this.frame = ShortBuffer.allocate(0);
+            } else {
+                final short[] samples = new short[960 * 2];
+                Arrays.fill(samples, sample);
+                this.frame = ShortBuffer.wrap(samples);
+            }
+        }
+
+        @Override
+        public boolean canProvide() {
+            return true;
+        }
+
+        @Override
+        public ShortBuffer provide20MsPcm() {
+            this.frame.clear();
+            return this.frame;
+        }
+    }
+
+    private static class FramedConstantSource extends ConstantSource implements FramedSendHandler {
+        private final FrameDuration frameDuration;
+
+        private FramedConstantSource(final FrameDuration frameDuration) {
+            super((short) 1);
+            this.frameDuration = frameDuration;
+        }
+
+        @Override
+        public FrameDuration getFrameDuration() {
+            return this.frameDuration;
+        }
+    }
+
+    //a plain send handler providing pcm audio as big endian bytes
+    private static class ConstantBytes implements AudioSendHandler {
+        private final byte[] frame = new byte[960 * 2 * 2];
+
+        private ConstantBytes(final byte high, final byte low) {
+            for (int i = 0; i < this.frame.length; i += 2) {
+                this.frame[i] = high;
+                this.frame[i + 1] = low;
+            }
+        }
+
+        @Override
+        public boolean canProvide() {
+            return true;
+        }
+
+        @Override
+        public byte[] provide20MsAudio() {
+            return this.frame;
+        }
+    }
+}
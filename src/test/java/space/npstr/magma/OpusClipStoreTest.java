@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OpusClipStoreTest {
+
+    private static final List<byte[]> AIRHORN = Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4}, new byte[]{5, 6});
+
+    @Test
+    public void playsClipFrames() throws IOException {
+        final Path file = Files.createTempFile("magma", ".clips");
+        try (final OpusClipStore store = new OpusClipStore(file)) {
+            store.addClip("airhorn", AIRHORN);
+
+            assertFrames(AIRHORN, store.createSendHandler("airhorn"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void reopenedStoreKeepsClips() throws IOException {
+        final Path file = Files.createTempFile("magma", ".clips");
+        try {
+            try (final OpusClipStore store = new OpusClipStore(file)) {
+                store.addClip("airhorn", AIRHORN);
+                store.addClip("sad trombone", Arrays.asList(new byte[]{7}, new byte[]{8}));
+                store.addClip("airhorn", AIRHORN.subList(0, 1));
+            }
+            try (final OpusClipStore store = new OpusClipStore(file)) {
+                assertEquals(Set.of("airhorn", "sad trombone"), store.getClipNames(), "Clips were not indexed");
+                assertFrames(AIRHORN.subList(0, 1), store.createSendHandler("airhorn"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void dropsIncompleteClip() throws IOException {
+        final Path file = Files.createTempFile("magma", ".clips");
+        try {
+            try (final OpusClipStore store = new OpusClipStore(file)) {
+                store.addClip("airhorn", AIRHORN);
+            }
+            final long intact = Files.size(file);
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(new byte[]{0, 3, 'c', 'u'}));
+            }
+            try (final OpusClipStore store = new OpusClipStore(file)) {
+                assertEquals(Set.of("airhorn"), store.getClipNames(), "Incomplete clip was indexed");
+                assertEquals(intact, Files.size(file), "Incomplete clip was not dropped");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void unknownClip() throws IOException {
+        final Path file = Files.createTempFile("magma", ".clips");
+        try (final OpusClipStore store = new OpusClipStore(file)) {
+            final Executable ex = () -> store.createSendHandler("airhorn");
+
+            assertThrows(IllegalArgumentException.class, ex, "Created a send handler for an unknown clip");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void assertFrames(final List<byte[]> expected, final OpusFrameSendHandler sendHandler) {
+        for (final byte[] frame : expected) {
+            assertTrue(sendHandler.canProvide(), "Clip ended early");
+            final ByteBuffer provided = sendHandler.provide20MsOpus();
+            final byte[] actual = new byte[provided.remaining()];
+            provided.get(actual);
+            assertArrayEquals(frame, actual, "Unexpected frame");
+        }
+        assertFalse(sendHandler.canProvide(), "Clip did not end");
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PcmSendHandlerTest {
+
+    @Test
+    public void providesBigEndianBytes() {
+        final PcmSendHandler sendHandler = new FixedPcm(ShortBuffer.wrap(new short[]{0x0102, -2}));
+
+        assertArrayEquals(new byte[]{0x01, 0x02, (byte) 0xFF, (byte) 0xFE}, sendHandler.provide20MsAudio(),
+                "Samples were not converted to big endian bytes");
+    }
+
+    @Test
+    public void providesNothingWithoutSamples() {
+        final PcmSendHandler sendHandler = new FixedPcm(null);
+
+        assertNull(sendHandler.provide20MsAudio(), "Provided audio without samples");
+    }
+
+    private static class FixedPcm implements PcmSendHandler {
+        private final ShortBuffer pcm;
+
+        private FixedPcm(final ShortBuffer pcm) {
+            this.pcm = pcm;
+        }
+
+        @Override
+        public boolean canProvide() {
+            return true;
+        }
+
+        @Override
+        public ShortBuffer provide20MsPcm() {
+            return this.pcm;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void limitsConcurrentConnects() {
+        final AdmissionControl admissionControl = new AdmissionControl(2);
+        final List<AdmissionControl.Permit> permits = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            admissionControl.admit("a.discord.gg", false).subscribe(permits::add);
+        }
+        assertEquals(2, permits.size(), "Admitted more connections than allowed");
+
+        permits.get(0).succeeded();
+        assertEquals(3, permits.size(), "Did not admit a queued connection after a permit was returned");
+    }
+
+    @Test
+    public void prioritizedGoFirst() {
+        final AdmissionControl admissionControl = new AdmissionControl(1);
+        final List<String> admitted = new ArrayList<>();
+        final List<AdmissionControl.Permit> permits = new ArrayList<>();
+
+        admissionControl.admit("a.discord.gg", false).subscribe(permits::add);
+        admissionControl.admit("b.discord.gg", false).subscribe(permit -> {
+            admitted.add("unprioritized");
+            permits.add(permit);
+        });
+        admissionControl.admit("c.discord.gg", true).subscribe(permit -> {
+            admitted.add("prioritized");
+            permits.add(permit);
+        });
+
+        permits.get(0).release();
+        permits.get(1).release();
+        assertEquals(List.of("prioritized", "unprioritized"), admitted, "Prioritized connection did not go first");
+    }
+
+    @Test
+    public void releaseIsIdempotent() {
+        final AdmissionControl admissionControl = new AdmissionControl(1);
+        final List<AdmissionControl.Permit> permits = new ArrayList<>();
+
+        admissionControl.admit("a.discord.gg", false).subscribe(permits::add);
+        permits.get(0).release();
+        permits.get(0).release();
+        admissionControl.admit("a.discord.gg", false).subscribe(permits::add);
+        admissionControl.admit("a.discord.gg", false).subscribe(permits::add);
+
+        assertEquals(2, permits.size(), "Returning a permit twice freed up two places");
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import net.dv8tion.jda.core.audio.AudioPacket;
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+import net.dv8tion.jda.core.audio.factory.IAudioSendFactory;
+import net.dv8tion.jda.core.audio.factory.IAudioSendSystem;
+import net.dv8tion.jda.core.audio.factory.IPacketProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.adapter.AbstractWebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import space.npstr.magma.AudioStackLifecyclePipeline;
+import space.npstr.magma.Config;
+import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.MagmaConfig;
+import space.npstr.magma.MagmaMember;
+import space.npstr.magma.Member;
+import space.npstr.magma.ReadinessNotifyingSendHandler;
+import space.npstr.magma.events.audio.lifecycle.UpdateSendHandlerLcEvent;
+import space.npstr.magma.events.audio.lifecycle.VoiceServerUpdateLcEvent;
+import space.npstr.magma.events.audio.ws.in.SessionDescription;
+import space.npstr.magma.events.audio.ws.in.SessionDescriptionWsEvent;
+import space.npstr.magma.immutables.ImmutableSessionInfo;
+import space.npstr.magma.immutables.SessionInfo;
+import space.npstr.magma.transport.WebSocketTransport;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs connections against a fake send system, with send handlers that provide opus, so no native library is needed.
+ */
+public class AudioConnectionTest {
+
+    private static final Member MEMBER = MagmaMember.builder()
+            .userId("166604053629894657")
+            .guildId("174820236481134592")
+            .build();
+    private static final int SSRC = 42;
+    private static final byte[] SECRET_KEY = new byte[AudioConnection.DISCORD_SECRET_KEY_LENGTH];
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final String SPEAKING = "{\"op\":5,\"d\":{\"delay\":0,\"speaking\":1}}";
+
+    private final FakeSendFactory sendFactory = new FakeSendFactory();
+    @Nullable
+    private AudioConnection connection;
+
+    @AfterEach
+    public void tearDown() {
+        if (this.connection != null) {
+            this.connection.shutdown();
+        }
+    }
+
+    @Test
+    public void batchKeepsOrderAndBounds() throws Exception {
+        final IPacketProvider provider = this.connect(MagmaConfig.builder().build(), new OpusSource(10)).provider;
+
+        final DatagramPacket[] packets = new DatagramPacket[5];
+        assertEquals(3, provider.getNextPackets(false, packets, 1, 3), "Unexpected amount of packets retrieved");
+        assertNull(packets[0], "Wrote in front of the offset");
+        assertNull(packets[4], "Wrote past the length");
+        for (int i = 0; i < 3; i++) {
+            final AudioPacket packet = new AudioPacket(packets[1 + i]);
+            assertEquals(i, packet.getSequence(), "Packets are out of order");
+            assertEquals(i * AudioConnection.OPUS_FRAME_SIZE, packet.getTimestamp(), "Unexpected timestamp");
+            assertArrayEquals(new byte[]{(byte) i}, decrypt(packets[1 + i]), "Packets carry the wrong frames");
+        }
+
+        final DatagramPacket single = provider.getNextPacket(false);
+        assertNotNull(single, "Single packet was not retrieved");
+        assertEquals(3, new AudioPacket(single).getSequence(), "Single packet is out of order with the batch");
+    }
+
+    @Test
+    public void batchStopsWhenSendHandlerRunsDry() throws Exception {
+        final IPacketProvider provider = this.connect(MagmaConfig.builder().build(), new OpusSource(2)).provider;
+
+        final DatagramPacket[] packets = new DatagramPacket[5];
+        assertEquals(2, provider.getNextPackets(false, packets, 0, 5), "Retrieved packets the send handler did not provide");
+        assertEquals(0, provider.getNextPackets(false, packets, 0, 5), "Retrieved packets from a drained send handler");
+    }
+
+    @Test
+    public void talkingOnlyChangesWhenNothingWasRetrieved() throws Exception {
+        final Config config = MagmaConfig.builder()
+                .speakingReleaseDelay(Duration.ZERO)
+                .build();
+        final IPacketProvider provider = this.connect(config, new OpusSource(1)).provider;
+        final AudioConnection connection = this.connection;
+        assertNotNull(connection);
+
+        final DatagramPacket[] packets = new DatagramPacket[3];
+        assertEquals(1, provider.getNextPackets(true, packets, 0, 3), "Unexpected amount of packets retrieved");
+        assertTrue(connection.isSpeaking(), "Stopped speaking although a packet was retrieved");
+
+        assertEquals(0, provider.getNextPackets(false, packets, 0, 3), "Retrieved packets from a drained send handler");
+        assertTrue(connection.isSpeaking(), "Stopped speaking although we were not allowed to change talking");
+
+        assertEquals(0, provider.getNextPackets(true, packets, 0, 3), "Retrieved packets from a drained send handler");
+        assertFalse(connection.isSpeaking(), "Did not stop speaking although nothing was retrieved");
+    }
+
+    @Test
+    public void pipelinedBatchKeepsOrder() throws Exception {
+        final Config config = MagmaConfig.builder()
+                .isPipelinedSending(true)
+                .build();
+        final IPacketProvider provider = this.connect(config, new OpusSource(10)).provider;
+
+        final DatagramPacket[] packets = new DatagramPacket[10];
+        int count = 0;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (count < packets.length && System.nanoTime() < deadline) {
+            count += provider.getNextPackets(false, packets, count, packets.length - count);
+            Thread.sleep(1);
+        }
+        assertEquals(packets.length, count, "Prepared packets were not handed out");
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, new AudioPacket(packets[i]).getSequence(), "Prepared packets are out of order");
+        }
+    }
+
+    @Test
+    public void parksAndWakesUp() throws Exception {
+        final NotifyingOpusSource sendHandler = new NotifyingOpusSource(10);
+        final FakeSendSystem sendSystem = this.connect(MagmaConfig.builder().build(), sendHandler);
+
+        sendHandler.setReady(false);
+        assertNull(sendSystem.provider.getNextPacket(true), "Retrieved a packet from a send handler that is not ready");
+        assertTrue(sendSystem.shutdown.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "Send system was not parked");
+
+        sendHandler.setReady(true);
+        final FakeSendSystem woken = this.sendFactory.nextStarted();
+        assertNotNull(woken.provider.getNextPacket(true), "No packet was retrieved after waking up");
+    }
+
+    @Test
+    public void hibernatesAndWakesUp() throws Exception {
+        final Config config = MagmaConfig.builder()
+                .hibernationDelay(Duration.ofMillis(1))
+                .build();
+        final OpusSource sendHandler = new OpusSource(10);
+        final FakeSendSystem sendSystem = this.connect(config, sendHandler);
+
+        sendHandler.canProvide = false;
+        assertNull(sendSystem.provider.getNextPacket(true), "Retrieved a packet from a send handler that can not provide");
+        Thread.sleep(10);
+        assertNull(sendSystem.provider.getNextPacket(true), "Retrieved a packet from a send handler that can not provide");
+        assertTrue(sendSystem.shutdown.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "Connection did not hibernate");
+
+        sendHandler.canProvide = true;
+        final FakeSendSystem woken = this.sendFactory.nextStarted();
+        assertNotNull(woken.provider.getNextPacket(true), "No packet was retrieved after waking up");
+    }
+
+    @Test
+    public void speaksAgainAfterMovingToAnotherVoiceServer() throws Exception {
+        final FakeSendSystem sendSystem = this.connect(MagmaConfig.builder().build(), new OpusSource(10));
+        final AudioConnection connection = this.connection;
+        assertNotNull(connection);
+        final FakeWebSocketTransport transport = new FakeWebSocketTransport();
+        final HeartbeatScheduler heartbeatScheduler = new HeartbeatScheduler(3);
+        final AdmissionControl admissionControl = new AdmissionControl(10);
+        final AudioStackLifecyclePipeline pipeline = new AudioStackLifecyclePipeline(member -> this.sendFactory,
+                transport, heartbeatScheduler, admissionControl, MagmaConfig.builder().build());
+        try {
+            final AudioWebSocket oldWebSocket = new AudioWebSocket(sessionInfo("old.discord.media"), connection,
+                    transport, heartbeatScheduler, admissionControl, pipeline, true);
+            final FakeWebSocketSession oldSession = transport.nextSession();
+            oldWebSocket.onNext(sessionDescription());
+            assertNotNull(sendSystem.provider.getNextPacket(true), "No packet was retrieved");
+            assertEquals(SPEAKING, oldSession.nextSent(), "Did not tell the old session that we speak");
+
+            final AudioWebSocket newWebSocket = new AudioWebSocket(sessionInfo("new.discord.media"),
+                    oldWebSocket.closeAndDetachAudioConnection(), transport, heartbeatScheduler, admissionControl,
+                    pipeline, true);
+            final FakeWebSocketSession newSession = transport.nextSession();
+            discoverUdp(connection);
+            newWebSocket.onNext(sessionDescription());
+            assertNotNull(sendSystem.provider.getNextPacket(true), "No packet was retrieved after moving");
+            assertEquals(SPEAKING, newSession.nextSent(), "Did not tell the new session that we speak");
+            newWebSocket.closeAndDetachAudioConnection();
+        } finally {
+            heartbeatScheduler.shutdown();
+        }
+    }
+
+    // ################################################################################
+    // #                                Internals
+    // ################################################################################
+
+    //sets up a connection with udp target and encryption, and returns its started send system
+    private FakeSendSystem connect(final Config config, final AudioSendHandler sendHandler) throws Exception {
+        final AudioConnection connection = new AudioConnection(this.sendFactory, config);
+        this.connection = connection;
+        connection.updateSecretKeyAndEncryptionMode(SECRET_KEY, EncryptionMode.XSALSA20_POLY1305);
+        discoverUdp(connection);
+        connection.updateSendHandler(UpdateSendHandlerLcEvent.builder()
+                .member(MEMBER)
+                .audioSendHandler(sendHandler)
+                .build());
+        return this.sendFactory.nextStarted();
+    }
+
+    //plays the part of Discord's udp discovery on the loopback interface
+    private static void discoverUdp(final AudioConnection connection) throws IOException {
+        try (final DatagramSocket discord = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            final Thread responder = new Thread(() -> {
+                try {
+                    final DatagramPacket request = new DatagramPacket(new byte[70], 70);
+                    discord.receive(request);
+                    final byte[] response = new byte[70];
+                    final byte[] ip = "127.0.0.1".getBytes(StandardCharsets.US_ASCII);
+                    System.arraycopy(ip, 0, response, 4, ip.length);
+                    response[68] = (byte) request.getPort();
+                    response[69] = (byte) (request.getPort() >> 8);
+                    discord.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                } catch (final IOException ignored) {
+                    //the discovery will fail the test
+                }
+            });
+            responder.start();
+            final InetSocketAddress external = connection
+                    .handleUdpDiscovery((InetSocketAddress) discord.getLocalSocketAddress(), SSRC)
+                    .block(Duration.ofSeconds(TIMEOUT_SECONDS));
+            assertNotNull(external, "Udp discovery failed");
+        }
+    }
+
+    private static SessionInfo sessionInfo(final String endpoint) {
+        return ImmutableSessionInfo.builder()
+                .voiceServerUpdate(VoiceServerUpdateLcEvent.builder()
+                        .member(MEMBER)
+                        .sessionId("session")
+                        .endpoint(endpoint)
+                        .token("token")
+                        .build())
+                .build();
+    }
+
+    private static SessionDescription sessionDescription() {
+        return SessionDescriptionWsEvent.builder()
+                .encryptionMode(EncryptionMode.XSALSA20_POLY1305)
+                .secretKey(SECRET_KEY)
+                .build();
+    }
+
+    private static byte[] decrypt(final DatagramPacket packet) {
+        final AudioPacket decrypted = AudioPacket.decryptAudioPacket(packet, SECRET_KEY);
+        assertNotNull(decrypted, "Packet could not be decrypted");
+        return decrypted.getEncodedAudio();
+    }
+
+    private static class FakeSendFactory implements IAudioSendFactory {
+        private final BlockingQueue<FakeSendSystem> started = new LinkedBlockingQueue<>();
+
+        @Override
+        public IAudioSendSystem createSendSystem(final IPacketProvider packetProvider) {
+            return new FakeSendSystem(packetProvider, this.started);
+        }
+
+        private FakeSendSystem nextStarted() throws InterruptedException {
+            final FakeSendSystem sendSystem = this.started.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(sendSystem, "No send system was started");
+            return sendSystem;
+        }
+    }
+
+    private static class FakeSendSystem implements IAudioSendSystem {
+        private final IPacketProvider provider;
+        private final BlockingQueue<FakeSendSystem> started;
+        private final CountDownLatch shutdown = new CountDownLatch(1);
+
+        private FakeSendSystem(final IPacketProvider provider, final BlockingQueue<FakeSendSystem> started) {
+            this.provider = provider;
+            this.started = started;
+        }
+
+        @Override
+        public void start() {
+            this.started.add(this);
+        }
+
+        @Override
+        public void shutdown() {
+            this.shutdown.countDown();
+        }
+    }
+
+    //provides frames made of a single byte: their index
+    private static class OpusSource implements AudioSendHandler {
+        private final int frames;
+        private int provided = 0;
+        volatile boolean canProvide = true;
+
+        private OpusSource(final int frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public boolean canProvide() {
+            return this.canProvide && this.provided < this.frames;
+        }
+
+        @Nullable
+        @Override
+        public byte[] provide20MsAudio() {
+            if (this.provided >= this.frames) {
+                return null;
+            }
+            return new byte[]{(byte) this.provided++};
+        }
+
+        @Override
+        public boolean isOpus() {
+            return true;
+        }
+    }
+
+    private static class NotifyingOpusSource extends OpusSource implements ReadinessNotifyingSendHandler {
+        @Nullable
+        private volatile ReadinessListener listener;
+
+        private NotifyingOpusSource(final int frames) {
+            super(frames);
+        }
+
+        @Override
+        public void setReadinessListener(@Nullable final ReadinessListener listener) {
+            this.listener = listener;
+        }
+
+        private void setReady(final boolean ready) {
+            this.canProvide = ready;
+            final ReadinessListener listener = this.listener;
+            if (listener != null) {
+                listener.onReadinessChanged(ready);
+            }
+        }
+    }
+    //hands the handler a fresh fake session for each connection
+    private static class FakeWebSocketTransport implements WebSocketTransport {
+        private final BlockingQueue<FakeWebSocketSession> sessions = new LinkedBlockingQueue<>();
+
+        @Override
+        public Mono<Void> execute(final URI url, final WebSocketHandler handler) {
+            return Mono.defer(() -> {
+                final FakeWebSocketSession session = new FakeWebSocketSession(url);
+                this.sessions.add(session);
+                return handler.handle(session);
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            //nothing to release
+        }
+
+        private FakeWebSocketSession nextSession() throws InterruptedException {
+            final FakeWebSocketSession session = this.sessions.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(session, "No websocket session was established");
+            return session;
+        }
+    }
+
+    //records the text of the messages sent through it, and never receives anything
+    private static class FakeWebSocketSession extends AbstractWebSocketSession<Object> {
+        private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+
+        private FakeWebSocketSession(final URI url) {
+            super(new Object(), "fake", new HandshakeInfo(url, new HttpHeaders(), Mono.empty(), null),
+                    new DefaultDataBufferFactory());
+        }
+
+        @Override
+        public Flux<WebSocketMessage> receive() {
+            return Flux.never();
+        }
+
+        @Override
+        public Mono<Void> send(final Publisher<WebSocketMessage> messages) {
+            return Flux.from(messages)
+                    .doOnNext(message -> this.sent.add(message.getPayloadAsText()))
+                    .then();
+        }
+
+        @Override
+        public Mono<Void> close(final CloseStatus status) {
+            return Mono.empty();
+        }
+
+        private String nextSent() throws InterruptedException {
+            final String message = this.sent.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(message, "Nothing was sent");
+            return message;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+import space.npstr.magma.MagmaMember;
+import space.npstr.magma.Member;
+import space.npstr.magma.events.audio.ws.out.Heartbeat;
+
+import java.util.OptionalLong;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HeartbeatSchedulerTest {
+
+    private static final Member MEMBER = MagmaMember.builder()
+            .userId("166604053629894657")
+            .guildId("174820236481134592")
+            .build();
+
+    @Test
+    public void onlyAcksOfTheLastHeartbeatMeasureRtt() throws InterruptedException {
+        final HeartbeatScheduler scheduler = new HeartbeatScheduler(3);
+        try {
+            final BlockingQueue<Heartbeat> heartbeats = new ArrayBlockingQueue<>(16);
+            final HeartbeatScheduler.Registration registration = scheduler.register(MEMBER, 1000,
+                    event -> heartbeats.offer((Heartbeat) event), () -> {});
+            final Heartbeat heartbeat = heartbeats.poll(5, TimeUnit.SECONDS);
+            assertNotNull(heartbeat, "No heartbeat was sent");
+
+            registration.acknowledge(0);
+            assertEquals(OptionalLong.empty(), scheduler.getRttMillis(MEMBER), "Ack without a nonce was measured");
+
+            registration.acknowledge(heartbeat.getNonce());
+            assertTrue(scheduler.getRttMillis(MEMBER).isPresent(), "Ack of the last heartbeat was not measured");
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
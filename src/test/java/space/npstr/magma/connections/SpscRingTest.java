@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SpscRingTest {
+
+    @Test
+    public void boundedFifo() {
+        final SpscRing<Integer> ring = new SpscRing<>(3);
+
+        assertTrue(ring.offer(1), "Did not accept an element into an empty ring");
+        assertTrue(ring.offer(2), "Did not accept an element into a ring with space left");
+        assertTrue(ring.offer(3), "Did not accept an element into a ring with space left");
+        assertFalse(ring.offer(4), "Accepted an element into a full ring");
+        assertEquals(3, ring.size(), "Unexpected size of a full ring");
+
+        assertEquals(Integer.valueOf(1), ring.poll(), "Polled elements out of order");
+        assertTrue(ring.offer(5), "Did not accept an element after one was polled");
+
+        final List<Integer> polled = new ArrayList<>();
+        Integer element;
+        while ((element = ring.poll()) != null) {
+            polled.add(element);
+        }
+        assertEquals(List.of(2, 3, 5), polled, "Polled elements out of order after wrapping around");
+        assertNull(ring.poll(), "Polled an element out of an empty ring");
+    }
+
+    @Test
+    public void handsOverAcrossThreads() {
+        //yielding instead of spinning, so this stays quick on machines with a single cpu
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            final int count = 1_000;
+            final SpscRing<Integer> ring = new SpscRing<>(8);
+            final Thread producer = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    while (!ring.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            producer.start();
+
+            for (int expected = 0; expected < count; ) {
+                final Integer element = ring.poll();
+                if (element == null) {
+                    Thread.yield();
+                    continue;
+                }
+                assertEquals(expected, element.intValue(), "Lost or reordered an element");
+                expected++;
+            }
+            producer.join();
+            assertEquals(0, ring.size(), "Ring is not empty after all elements were polled");
+        }, "Handing over elements across threads took too long");
+    }
+}
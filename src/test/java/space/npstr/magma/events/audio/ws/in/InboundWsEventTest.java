@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.events.audio.ws.in;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.events.audio.ws.SpeakingWsEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class InboundWsEventTest {
+
+    @Test
+    public void hello() {
+        final InboundWsEvent event = InboundWsEvent.from("{\"op\":8,\"d\":{\"heartbeat_interval\":41250.0}}");
+
+        assertEquals(HelloWsEvent.builder().heartbeatIntervalMillis(41250).build(), event);
+    }
+
+    @Test
+    public void ready() {
+        final InboundWsEvent event = InboundWsEvent.from("{\"d\": {\"ssrc\": 1, \"ip\": \"127.0.0.1\", \"port\": 1234, "
+                + "\"modes\": [\"xsalsa20_poly1305\", \"some_unknown_mode\", \"xsalsa20_poly1305_lite\"], "
+                + "\"experiments\": [\"foo\", {\"bar\": [1, 2]}]}, \"op\": 2}");
+
+        assertEquals(ReadyWsEvent.builder()
+                .ssrc(1)
+                .ip("127.0.0.1")
+                .port(1234)
+                .addAllEncryptionModes(List.of(EncryptionMode.XSALSA20_POLY1305, EncryptionMode.XSALSA20_POLY1305_LITE))
+                .build(), event);
+    }
+
+    @Test
+    public void sessionDescription() {
+        final StringBuilder key = new StringBuilder();
+        final byte[] expectedKey = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            expectedKey[i] = (byte) (i * 8);
+            key.append(i == 0 ? "" : ",").append(i * 8);
+        }
+        final InboundWsEvent event = InboundWsEvent.from(
+                "{\"op\":4,\"d\":{\"mode\":\"xsalsa20_poly1305_suffix\",\"secret_key\":[" + key + "]}}");
+
+        final SessionDescription sessionDescription = (SessionDescription) event;
+        assertEquals(EncryptionMode.XSALSA20_POLY1305_SUFFIX, sessionDescription.getEncryptionMode());
+        assertArrayEquals(expectedKey, sessionDescription.getSecretKey());
+    }
+
+    @Test
+    public void speaking() {
+        final InboundWsEvent event = InboundWsEvent.from("{\"op\":5,\"d\":{\"user_id\":\"1\",\"ssrc\":2,\"speaking\":1}}");
+
+        assertEquals(SpeakingWsEvent.builder().speakingMask(1).build(), event);
+    }
+
+    @Test
+    public void heartbeatAck() {
+        assertEquals(HeartbeatAckWsEvent.builder().nonce(1539900000000L).build(),
+                InboundWsEvent.from("{\"op\":6,\"d\":1539900000000}"));
+        assertEquals(HeartbeatAckWsEvent.builder().nonce(0).build(),
+                InboundWsEvent.from("{\"op\":6,\"d\":null}"));
+    }
+
+    @Test
+    public void webSocketClosed() {
+        final InboundWsEvent event = InboundWsEvent.from(
+                "{\"op\":9001,\"d\":{\"code\":4006,\"reason\":\"Session is \\\"no longer\\\" valid \\u00e9\"}}");
+
+        assertEquals(WebSocketClosedWsEvent.builder()
+                .code(4006)
+                .reason("Session is \"no longer\" valid \u00e9")
+                .build(), event);
+    }
+
+    @Test
+    public void unknown() {
+        final String payload = "{\"op\":42,\"d\":{\"foo\":\"bar\"}}";
+
+        assertEquals(UnknownWsEvent.builder().payload(payload).opCode(42).build(), InboundWsEvent.from(payload));
+    }
+
+    @Test
+    public void fromSlicedBuffer() {
+        final byte[] bytes = "xx{\"op\":6,\"d\":42}yy".getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 4);
+
+        assertEquals(HeartbeatAckWsEvent.builder().nonce(42).build(), InboundWsEvent.from(buffer));
+        assertEquals(2, buffer.position(), "Parsing moved the position of the buffer");
+    }
+
+    @Test
+    public void malformed() {
+        final Executable missingOp = () -> InboundWsEvent.from("{\"d\":{}}");
+        final Executable unterminated = () -> InboundWsEvent.from("{\"op\":8,\"d\":{\"heartbeat_interval\":");
+
+        assertThrows(IllegalArgumentException.class, missingOp, "Accepted payload without op code");
+        assertThrows(IllegalArgumentException.class, unterminated, "Accepted truncated payload");
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.events.audio.ws.out;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import space.npstr.magma.events.audio.ws.SpeakingWsEvent;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageTemplateTest {
+
+    private final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    @Test
+    public void fillsInNumbers() {
+        final MessageTemplate template = new MessageTemplate("{\"n\":", "}");
+
+        for (final long value : new long[]{0, 7, 10, -42, 1539900000000L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            final String expected = "{\"n\":" + value + "}";
+            assertEquals(expected, this.read(template.write(this.bufferFactory, value)), "Wrong message written");
+            assertEquals(expected, new String(template.toBytes(value), StandardCharsets.UTF_8), "Wrong message built");
+        }
+    }
+
+    @Test
+    public void templatedEventsMatchTheirJson() {
+        final OutboundWsEvent heartbeat = HeartbeatWsEvent.builder().nonce(1539900000000L).build();
+        final OutboundWsEvent speaking = SpeakingWsEvent.builder().speakingMask(1).build();
+
+        for (final OutboundWsEvent event : new OutboundWsEvent[]{heartbeat, speaking}) {
+            final JSONObject expected = new JSONObject()
+                    .put("op", event.getOpCode())
+                    .put("d", event.getData());
+            final JSONObject actual = new JSONObject(this.read(event.writeMessage(this.bufferFactory)));
+            assertTrue(expected.similar(actual), "Templated message " + actual + " differs from its json " + expected);
+        }
+    }
+
+    private String read(final DataBuffer buffer) {
+        final byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.transport;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EndpointResolverTest {
+
+    private static final InetAddress ADDRESS = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void cachesLookups() {
+        final AtomicInteger lookups = new AtomicInteger(0);
+        final EndpointResolver resolver = new EndpointResolver(Duration.ofMinutes(1), host -> {
+            lookups.incrementAndGet();
+            return ADDRESS;
+        });
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ADDRESS, resolver.resolve("a.discord.gg").block(), "Resolved unexpected address");
+        }
+        assertEquals(1, lookups.get(), "Looked up a cached host again");
+
+        resolver.resolve("b.discord.gg").block();
+        assertEquals(2, lookups.get(), "Did not look up a different host");
+    }
+
+    @Test
+    public void expiresLookups() {
+        final AtomicInteger lookups = new AtomicInteger(0);
+        final EndpointResolver resolver = new EndpointResolver(Duration.ZERO, host -> {
+            lookups.incrementAndGet();
+            return ADDRESS;
+        });
+
+        resolver.resolve("a.discord.gg").block();
+        resolver.resolve("a.discord.gg").block();
+        assertEquals(2, lookups.get(), "Did not look up an expired host again");
+    }
+
+    @Test
+    public void doesNotCacheFailures() {
+        final AtomicInteger lookups = new AtomicInteger(0);
+        final EndpointResolver resolver = new EndpointResolver(Duration.ofMinutes(1), host -> {
+            if (lookups.incrementAndGet() == 1) {
+                throw new UnknownHostException(host);
+            }
+            return ADDRESS;
+        });
+
+        assertThrows(RuntimeException.class, () -> resolver.resolve("a.discord.gg").block(), "Lookup did not fail");
+        assertEquals(ADDRESS, resolver.resolve("a.discord.gg").block(), "Cached a failed lookup");
+    }
+}